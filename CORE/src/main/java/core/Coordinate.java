@@ -421,6 +421,16 @@ public class Coordinate implements Comparable<Coordinate>, Serializable {
         throw new ClassCastException("SRID not supported by this function.");
     }
 
+    /**
+     * Returns the distance (in meters) between two coordinates belonging to the
+     * same system of coordinates, using the given method.
+     * 
+     * @see DistanceMethod
+     */
+    public double distanceInMeters(Coordinate otherCoord, DistanceMethod method) {
+        return method.distanceInMeters(this, otherCoord);
+    }
+
     /**
      * This will eventually do something more useful than return the length of
      * the smallest link in dca.streets. It will: This function returns the
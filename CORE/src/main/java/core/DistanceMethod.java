@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package core;
+
+import org.apache.commons.math.util.FastMath;
+
+/**
+ * The methods to compute the distance (in meters) between two coordinates of
+ * SRID 4326. All the methods return the cartesian distance for coordinates of
+ * SRID 0.
+ * <p>
+ * The error bounds below are the maximum differences with a fully converged
+ * Vincenty distance on the WGS84 ellipsoid, for points between -70 and 70
+ * degrees of latitude:
+ * <table>
+ * <tr><th>method</th><th>100 m</th><th>1 km</th><th>10 km</th><th>50 km</th></tr>
+ * <tr><td>VINCENTY</td><td colspan="4">about 1 mm</td></tr>
+ * <tr><td>LOCAL_PLANAR</td><td>&lt; 0.1 mm</td><td>&lt; 0.1 mm</td><td>1 cm</td><td>1.2 m</td></tr>
+ * <tr><td>HAVERSINE</td><td>0.5 m</td><td>5 m</td><td>50 m</td><td>250 m</td></tr>
+ * <tr><td>EQUIRECTANGULAR</td><td>0.6 m</td><td>6 m</td><td>56 m</td><td>280 m</td></tr>
+ * </table>
+ * The spherical methods (haversine and equirectangular) have a relative error
+ * up to 0.5% because they ignore the flattening of the earth. The local planar
+ * method uses the radii of curvature of the ellipsoid at the mean latitude of
+ * the two points: it is closed-form, and accurate to the centimeter at the
+ * scale of a city.
+ * 
+ * @see DistancePolicy
+ */
+public enum DistanceMethod {
+
+    /**
+     * Iterative Vincenty inverse formula on the WGS84 ellipsoid (see
+     * {@link Coordinate#distanceVincentyInMeters(Coordinate)}). This is the
+     * default method.
+     */
+    VINCENTY(1e-5) {
+        @Override
+        protected double geodesicDistance(Coordinate c1, Coordinate c2) {
+            return c1.distanceVincentyInMeters(c2);
+        }
+    },
+
+    /**
+     * Great circle distance on a sphere (see
+     * {@link Coordinate#distanceHaversineInMeters(Coordinate)}).
+     */
+    HAVERSINE(0.005) {
+        @Override
+        protected double geodesicDistance(Coordinate c1, Coordinate c2) {
+            return c1.distanceHaversineInMeters(c2);
+        }
+    },
+
+    /**
+     * Planar approximation on a sphere of mean radius, with the longitudes
+     * scaled by the cosine of the mean latitude.
+     */
+    EQUIRECTANGULAR(0.006) {
+        @Override
+        protected double geodesicDistance(Coordinate c1, Coordinate c2) {
+            final double mean_lat = 0.5 * (c1.lat() + c2.lat()) * DEG_TO_RAD;
+            final double dx = MEAN_RADIUS * (c2.lat() - c1.lat()) * DEG_TO_RAD;
+            final double dy = MEAN_RADIUS * FastMath.cos(mean_lat)
+                    * deltaLon(c1, c2);
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    },
+
+    /**
+     * Planar approximation on the WGS84 ellipsoid: the latitudes are scaled by
+     * the meridional radius of curvature, and the longitudes by the radius of
+     * the parallel, both at the mean latitude.
+     */
+    LOCAL_PLANAR(1e-4) {
+        @Override
+        protected double geodesicDistance(Coordinate c1, Coordinate c2) {
+            final double mean_lat = 0.5 * (c1.lat() + c2.lat()) * DEG_TO_RAD;
+            final double sin_lat = FastMath.sin(mean_lat);
+            final double w = 1.0 - WGS84_E2 * sin_lat * sin_lat;
+            final double sqrt_w = Math.sqrt(w);
+            // Meridional and prime vertical radii of curvature.
+            final double m = WGS84_A * (1.0 - WGS84_E2) / (w * sqrt_w);
+            final double n = WGS84_A / sqrt_w;
+            final double dx = m * (c2.lat() - c1.lat()) * DEG_TO_RAD;
+            final double dy = n * FastMath.cos(mean_lat) * deltaLon(c1, c2);
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    };
+
+    private final double relative_error;
+
+    private DistanceMethod(double relative_error) {
+        this.relative_error = relative_error;
+    }
+
+    /**
+     * An upper bound of the relative error of this method (see the table
+     * above), for the distances up to 50 km.
+     */
+    public double relativeError() {
+        return relative_error;
+    }
+
+    private static final double DEG_TO_RAD = Math.PI / 180.0;
+    private static final double MEAN_RADIUS = 6371008.8;
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_F = 1.0 / 298.257223563;
+    private static final double WGS84_E2 = WGS84_F * (2.0 - WGS84_F);
+
+    /**
+     * The difference of longitude (radians) from c1 to c2, in [-pi, pi].
+     */
+    private static double deltaLon(Coordinate c1, Coordinate c2) {
+        double dlon = c2.lon() - c1.lon();
+        if (dlon > 180.0) {
+            dlon -= 360.0;
+        } else if (dlon < -180.0) {
+            dlon += 360.0;
+        }
+        return dlon * DEG_TO_RAD;
+    }
+
+    /**
+     * The distance between two coordinates of SRID 4326.
+     */
+    protected abstract double geodesicDistance(Coordinate c1, Coordinate c2);
+
+    /**
+     * The distance (in meters) between two coordinates with the same SRID.
+     * 
+     * @throws ClassCastException
+     *             if the SRID~s don't match, or are neither 0 nor 4326.
+     */
+    public double distanceInMeters(Coordinate c1, Coordinate c2) {
+        if (c1.srid() == null || !c1.srid().equals(c2.srid())) {
+            throw new ClassCastException(
+                    "The SRID of otherCoord does't match this one.");
+        }
+        switch (c1.srid()) {
+        case Coordinate.SRID_CARTESIAN:
+            return c1.distanceCartesianInSRUnits(c2);
+        case Coordinate.SRID_WGS84:
+            return geodesicDistance(c1, c2);
+        default:
+            throw new ClassCastException("SRID not supported by this function.");
+        }
+    }
+}
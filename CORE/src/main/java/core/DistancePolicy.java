@@ -0,0 +1,132 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package core;
+
+import java.util.Arrays;
+
+/**
+ * The distance method used by each class of call sites. The distances on the
+ * hot paths of the filter can be switched to a closed-form approximation (see
+ * {@link DistanceMethod} for the error bounds), while the other computations
+ * keep using {@link Coordinate#distanceDefaultMethodInMeters(Coordinate)}.
+ * <p>
+ * All the sites use {@link DistanceMethod#VINCENTY} by default. The policy is
+ * global: it should be set once, before loading the network (the lengths of
+ * the links are computed when they are created).
+ */
+public final class DistancePolicy {
+
+    /**
+     * The classes of call sites.
+     */
+    public enum Site {
+        /**
+         * The lengths of the links ({@link GeoMultiLine}) and the offsets of
+         * the projections on the links.
+         */
+        GEOMETRY,
+        /**
+         * The distances between the observations and their projections, in
+         * the observation models.
+         */
+        OBSERVATION,
+        /**
+         * The straight distances that bound the path searches.
+         */
+        PATH_SEARCH
+    }
+
+    // Copied on write, so that the readers need no lock.
+    private static volatile DistanceMethod[] methods = defaults();
+
+    private DistancePolicy() {
+    }
+
+    /**
+     * The distance method of a site.
+     */
+    public static DistanceMethod get(Site site) {
+        return methods[site.ordinal()];
+    }
+
+    /**
+     * Sets the distance method of a site.
+     */
+    public static synchronized void set(Site site, DistanceMethod method) {
+        if (method == null) {
+            throw new IllegalArgumentException("The distance method of "
+                    + site + " cannot be null");
+        }
+        final DistanceMethod[] copy = methods.clone();
+        copy[site.ordinal()] = method;
+        methods = copy;
+    }
+
+    /**
+     * Sets all the sites to Vincenty.
+     */
+    public static synchronized void reset() {
+        methods = defaults();
+    }
+
+    private static DistanceMethod[] defaults() {
+        final DistanceMethod[] res = new DistanceMethod[Site.values().length];
+        Arrays.fill(res, DistanceMethod.VINCENTY);
+        return res;
+    }
+
+    /**
+     * Sets the methods from a comma-separated list of site=method (case
+     * insensitive), for example "geometry=local_planar,observation=haversine".
+     * The site "all" sets all the sites.
+     * 
+     * @throws IllegalArgumentException
+     *             if a site or a method is unknown.
+     */
+    public static synchronized void parse(String spec) {
+        for (String item : spec.split(",")) {
+            final String s = item.trim();
+            if (s.isEmpty()) {
+                continue;
+            }
+            final int eq = s.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException(
+                        "Expected site=method, got " + s);
+            }
+            final String site = s.substring(0, eq).trim().toUpperCase();
+            final DistanceMethod method = DistanceMethod.valueOf(s
+                    .substring(eq + 1).trim().toUpperCase());
+            if (site.equals("ALL")) {
+                for (Site x : Site.values()) {
+                    set(x, method);
+                }
+            } else {
+                set(Site.valueOf(site), method);
+            }
+        }
+    }
+
+    /**
+     * The distance (in meters) between two coordinates, with the method of
+     * the site.
+     */
+    public static double distanceInMeters(Site site, Coordinate c1,
+            Coordinate c2) {
+        return methods[site.ordinal()].distanceInMeters(c1, c2);
+    }
+}
@@ -58,8 +58,9 @@ public final class GeoMultiLine implements Serializable {
         cumulative_lengths[0] = 0.0;
 
         for (int i = 1; i < n; ++i) {
-            double l = waypoints[i]
-                    .distanceDefaultMethodInMeters(waypoints[i - 1]);
+            double l = DistancePolicy.distanceInMeters(
+                    DistancePolicy.Site.GEOMETRY, waypoints[i],
+                    waypoints[i - 1]);
             cumulative_lengths[i] = cumulative_lengths[i - 1] + l;
             assert this.srid() == wps[i].srid();
         }
@@ -100,31 +101,58 @@ public final class GeoMultiLine implements Serializable {
         assert (offset >= 0);
         assert (offset <= getLength());
         assert (waypoints != null && waypoints.length > 1);
-        // if(offset >= getLength()-Coordinate.DISTANCE_PRECISION)
-        // return waypoints.length-2;
-        // TODO(?) use fast bisection here
-        int cur_idx = 0;
-        while ((cur_idx < waypoints.length)
-                && (cumulative_lengths[cur_idx] <= offset))
-            cur_idx++;
-        return cur_idx - 1;
+        return indexBeforeOffset(offset, 0);
+    }
+
+    /**
+     * Bisection for max_i { i >= from | cumulative_lengths[i] <= offset },
+     * assuming cumulative_lengths[from] <= offset.
+     */
+    private int indexBeforeOffset(double offset, int from) {
+        int lo = from;
+        int hi = cumulative_lengths.length;
+        // Invariant: cumulative_lengths[lo] <= offset, and hi is either the
+        // length or an index with cumulative_lengths[hi] > offset.
+        while (hi - lo > 1) {
+            final int mid = (lo + hi) >>> 1;
+            if (cumulative_lengths[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The largest offset accepted on the line: its length, plus the error of
+     * the distance method of the geometry on both the length of the line and
+     * the length of the link.
+     */
+    private double maxOffset() {
+        final double error = DistancePolicy.get(DistancePolicy.Site.GEOMETRY)
+                .relativeError();
+        return getLength() * (1 + 2 * error) + Coordinate.DISTANCE_PRECISION;
     }
 
     /**
      * 
      * @param offset
-     *            the offset on the line
+     *            the offset on the line. The offsets slightly beyond the
+     *            length of the line are clamped to its end: the length of a
+     *            link may come from the network data, and differ from the
+     *            length of its geometry by the error of the distance method
+     *            of the geometry (see {@link DistancePolicy}).
      * @return the coordinate of the point at the corresponding offset.
      */
     public Coordinate getCoordinate(double offset) {
         assert (offset >= 0);
-        assert (offset <= getLength());
+        assert (offset <= maxOffset());
         assert (waypoints != null && waypoints.length > 1);
         // Make sure there is no weird error at the end
         if (offset >= getLength() - Coordinate.DISTANCE_PRECISION)
             return waypoints[waypoints.length - 1];
 
-        // TODO(?) use fast bisection here
         int cur_idx = indexBeforeOffset(offset);
         assert (cur_idx <= cumulative_lengths.length - 2);
 
@@ -147,6 +175,60 @@ public final class GeoMultiLine implements Serializable {
         return waypoints;
     }
 
+    /**
+     * Bulk version of {@link #getCoordinate(double)}: fills the latitudes and
+     * the longitudes of the points at the given offsets, without allocating
+     * any coordinate. The offsets must be sorted: the waypoint before each
+     * offset is found by moving a cursor forward, with a bisection when the
+     * offset is past the next waypoint.
+     * 
+     * @param offsets
+     *            the offsets on the line, in increasing order (the offsets
+     *            slightly beyond the length of the line are clamped to its
+     *            end, see {@link #getCoordinate(double)}).
+     * @param lats
+     *            the latitudes of the points (at least as long as offsets).
+     * @param lons
+     *            the longitudes of the points (at least as long as offsets).
+     * @throws IllegalArgumentException
+     *             if the offsets are not sorted or the outputs are too short.
+     */
+    public void getCoordinates(double[] offsets, double[] lats, double[] lons) {
+        final int n = offsets.length;
+        if (lats.length < n || lons.length < n) {
+            throw new IllegalArgumentException(
+                    "The output arrays are shorter than the offsets");
+        }
+        final int last = waypoints.length - 1;
+        final double end = getLength() - Coordinate.DISTANCE_PRECISION;
+        int cur_idx = 0;
+        for (int i = 0; i < n; ++i) {
+            final double offset = offsets[i];
+            assert (offset >= 0);
+            assert (offset <= maxOffset());
+            if (i > 0 && offset < offsets[i - 1]) {
+                throw new IllegalArgumentException("The offsets are not sorted: "
+                        + offsets[i - 1] + " before " + offset);
+            }
+            // Make sure there is no weird error at the end
+            if (offset >= end) {
+                lats[i] = waypoints[last].lat();
+                lons[i] = waypoints[last].lon();
+                continue;
+            }
+            if (cumulative_lengths[cur_idx + 1] <= offset) {
+                cur_idx = indexBeforeOffset(offset, cur_idx + 1);
+            }
+            final double d = cumulative_lengths[cur_idx + 1]
+                    - cumulative_lengths[cur_idx];
+            final double ratio = (offset - cumulative_lengths[cur_idx]) / d;
+            final Coordinate before = waypoints[cur_idx];
+            final Coordinate after = waypoints[cur_idx + 1];
+            lats[i] = (1 - ratio) * before.lat() + ratio * after.lat();
+            lons[i] = (1 - ratio) * before.lon() + ratio * after.lon();
+        }
+    }
+
     /**
      * 
      * @param start_offset
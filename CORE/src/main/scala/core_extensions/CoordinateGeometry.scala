@@ -16,6 +16,7 @@
 package core_extensions
 
 import core.Coordinate
+import core.DistancePolicy
 /**
  * Operations that perform a linearization of the local geometry.
  */
@@ -35,13 +36,13 @@ object CoordinateGeometry {
   }
 
   /**
-   * Distance between 2 points (meters).
+   * Distance between 2 points (meters), with the method of the geometry of the
+   * links (see [[core.DistancePolicy]]).
    */
   def distance(p1: Coordinate, p2: Coordinate): Double = {
-    if (p1.srid.intValue == Coordinate.SRID_CARTESIAN)
-      return p1.distanceCartesianInMeters(p2)
-    if (p1.srid.intValue == 4326)
-      return p1.distanceVincentyInMeters(p2)
+    val srid = p1.srid.intValue
+    if (srid == Coordinate.SRID_CARTESIAN || srid == Coordinate.SRID_WGS84)
+      return DistancePolicy.distanceInMeters(DistancePolicy.Site.GEOMETRY, p1, p2)
     throw new Exception("Not implemented")
   }
 
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package core_extensions
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A counter that many threads can increment concurrently with little
+ * contention, in the spirit of java.util.concurrent.atomic.LongAdder (which
+ * requires java 8).
+ *
+ * The count is spread over a few cells, selected by the id of the calling
+ * thread, and each cell sits on its own cache line. Reading the total sums
+ * all the cells: it is not atomic with respect to concurrent updates, which is
+ * fine for statistics.
+ */
+final class StripedCounter {
+
+  // Number of longs between two cells, to avoid false sharing.
+  private[this] val padding = 8
+
+  private[this] val mask = {
+    val target = 2 * Runtime.getRuntime.availableProcessors
+    var n = 1
+    while (n < target) {
+      n *= 2
+    }
+    n - 1
+  }
+
+  private[this] val cells = new AtomicLongArray((mask + 1) * padding)
+
+  /**
+   * Adds a value to the counter.
+   *
+   * @return the new value of the cell used by the current thread. This is
+   *   a cheap way for a thread to trigger some periodic action.
+   */
+  def add(x: Long): Long = {
+    val idx = (Thread.currentThread.getId.toInt & mask) * padding
+    cells.addAndGet(idx, x)
+  }
+
+  def increment(): Long = add(1)
+
+  def sum: Long = {
+    var s = 0L
+    var i = 0
+    while (i <= mask) {
+      s += cells.get(i * padding)
+      i += 1
+    }
+    s
+  }
+
+  override def toString = sum.toString
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package core
+
+import org.junit._
+import org.junit.Assert._
+
+class DistanceMethodTest {
+
+  // Two points in San Francisco, about 6 km apart.
+  val c1 = new Coordinate(Coordinate.SRID_WGS84, 37.7749, -122.4194)
+  val c2 = new Coordinate(Coordinate.SRID_WGS84, 37.8080, -122.4700)
+
+  @Test def errorBounds(): Unit = {
+    val reference = DistanceMethod.VINCENTY.distanceInMeters(c1, c2)
+    assertEquals(reference, DistanceMethod.LOCAL_PLANAR.distanceInMeters(c1, c2), 0.01)
+    assertEquals(reference, DistanceMethod.HAVERSINE.distanceInMeters(c1, c2), 0.006 * reference)
+    assertEquals(reference, DistanceMethod.EQUIRECTANGULAR.distanceInMeters(c1, c2), 0.006 * reference)
+  }
+
+  @Test def cartesian(): Unit = {
+    val p1 = new Coordinate(Coordinate.SRID_CARTESIAN, 0, 0)
+    val p2 = new Coordinate(Coordinate.SRID_CARTESIAN, 3, 4)
+    for (method <- DistanceMethod.values) {
+      assertEquals(5.0, method.distanceInMeters(p1, p2), 1e-9)
+    }
+  }
+
+  @Test def policy(): Unit = {
+    try {
+      DistancePolicy.parse("observation=local_planar")
+      assertEquals(DistanceMethod.LOCAL_PLANAR, DistancePolicy.get(DistancePolicy.Site.OBSERVATION))
+      assertEquals(DistanceMethod.VINCENTY, DistancePolicy.get(DistancePolicy.Site.GEOMETRY))
+      DistancePolicy.parse("all=haversine")
+      assertEquals(DistanceMethod.HAVERSINE, DistancePolicy.get(DistancePolicy.Site.GEOMETRY))
+    } finally {
+      DistancePolicy.reset()
+    }
+  }
+}
@@ -18,6 +18,8 @@ package core.storage
 import org.junit._
 import org.junit.Assert._
 import core.Coordinate
+import core.DistanceMethod
+import core.DistancePolicy
 import core.GeoMultiLine
 
 class GeoMultiLineTest {
@@ -31,4 +33,57 @@ class GeoMultiLineTest {
     //    assertEquals(generate(gr), s1)
     //    assertEquals(parse[GeoMultiLineRepr](s1),gr)
   }
-}
\ No newline at end of file
+
+  // The second segment has a zero length.
+  val line = new GeoMultiLine(Array((0.0, 0.0), (3.0, 4.0), (3.0, 4.0), (3.0, 10.0), (10.0, 10.0)).map(xy =>
+    new Coordinate(Coordinate.SRID_CARTESIAN, xy._1, xy._2)))
+
+  @Test def indexBeforeOffset(): Unit = {
+    assertEquals(0, line.indexBeforeOffset(0.0))
+    assertEquals(0, line.indexBeforeOffset(4.9))
+    assertEquals(2, line.indexBeforeOffset(5.0))
+    assertEquals(3, line.indexBeforeOffset(11.0))
+    assertEquals(4, line.indexBeforeOffset(line.getLength))
+  }
+
+  @Test def bulkCoordinates(): Unit = {
+    val offsets = Array(0.0, 0.0, 2.5, 5.0, 7.0, 11.0, 15.0, line.getLength)
+    val lats = new Array[Double](offsets.length)
+    val lons = new Array[Double](offsets.length)
+    line.getCoordinates(offsets, lats, lons)
+    for (i <- 0 until offsets.length) {
+      val c = line.getCoordinate(offsets(i))
+      assertEquals(c.lat, lats(i), 1e-9)
+      assertEquals(c.lon, lons(i), 1e-9)
+    }
+  }
+
+  /**
+   * The offsets beyond the length of the line, within the error of the
+   * distance method, give its end.
+   */
+  @Test def offsetsBeyondLength(): Unit = {
+    try {
+      DistancePolicy.set(DistancePolicy.Site.GEOMETRY, DistanceMethod.HAVERSINE)
+      val end = line.getLastCoordinate
+      assertEquals(end, line.getCoordinate(line.getLength * 1.005))
+      val lats = new Array[Double](2)
+      val lons = new Array[Double](2)
+      line.getCoordinates(Array(line.getLength, line.getLength * 1.005), lats, lons)
+      assertEquals(end.lat, lats(1), 1e-9)
+      assertEquals(end.lon, lons(1), 1e-9)
+    } finally {
+      DistancePolicy.reset()
+    }
+  }
+
+  @Test(expected = classOf[AssertionError])
+  def offsetTooLarge(): Unit = {
+    line.getCoordinate(line.getLength * 1.005)
+  }
+
+  @Test(expected = classOf[IllegalArgumentException])
+  def unsortedOffsets(): Unit = {
+    line.getCoordinates(Array(2.0, 1.0), new Array[Double](2), new Array[Double](2))
+  }
+}
@@ -96,10 +96,26 @@ public class ProbeCoordinate<LINK extends Link> implements Serializable {
      * Unit-less horizontal dilution of position.
      */
     private final Float hdop_;
+    /**
+     * Optional: null is unknown.
+     * <p/>
+     * The distances (in meters) between the coordinate and the spots, as
+     * computed by the projector. Same length as the spots array. A NaN value
+     * means the distance of this spot is unknown.
+     */
+    private final ImmutableTensor1 spotDistances_;
 
     private ProbeCoordinate(String id, Time time, Coordinate coordinate,
             ImmutableList<Spot<LINK>> spots, ImmutableTensor1 probabilities,
             Float speed, Short heading, Boolean hired, Float hdop) {
+        this(id, time, coordinate, spots, probabilities, speed, heading,
+                hired, hdop, null);
+    }
+
+    private ProbeCoordinate(String id, Time time, Coordinate coordinate,
+            ImmutableList<Spot<LINK>> spots, ImmutableTensor1 probabilities,
+            Float speed, Short heading, Boolean hired, Float hdop,
+            ImmutableTensor1 spotDistances) {
         this.id_ = id;
         this.time_ = time;
         this.coordinate_ = coordinate;
@@ -109,6 +125,7 @@ public class ProbeCoordinate<LINK extends Link> implements Serializable {
         this.heading_ = heading;
         this.hired_ = hired;
         this.hdop_ = hdop;
+        this.spotDistances_ = spotDistances;
     }
 
     /**
@@ -130,6 +147,34 @@ public class ProbeCoordinate<LINK extends Link> implements Serializable {
                 speed(), heading(), hired(), hdop());
     }
 
+    /**
+     * Same as {@link #reprojected(Spot[])}, and keeps the distances between
+     * the coordinate and the new spots, so that the observation models do not
+     * need to compute them again.
+     * 
+     * @param spot_distances
+     *            the distances (in meters) between the coordinate and each
+     *            spot, or NaN if unknown. Can be null.
+     * @throws NetconfigException
+     *             if the distances and the spots have different lengths.
+     */
+    public <LINK2 extends Link> ProbeCoordinate<LINK2> reprojected(
+            Spot<LINK2>[] new_spots, double[] spot_distances)
+            throws NetconfigException {
+        final ProbeCoordinate<LINK2> res = reprojected(new_spots);
+        if (spot_distances == null) {
+            return res;
+        }
+        if (spot_distances.length != res.spots().size()) {
+            throw new NetconfigException(null, "Spots has length "
+                    + res.spots().size() + " while the distances have size "
+                    + spot_distances.length);
+        }
+        return new ProbeCoordinate<LINK2>(id(), time(), coordinate(),
+                res.spots(), res.probabilities(), speed(), heading(), hired(),
+                hdop(), ImmutableTensor1.from(spot_distances));
+    }
+
     /**
      * Returns a copy of this probe coordinate object with a new set of
      * projections and a net set of probabilities.
@@ -163,7 +208,7 @@ public class ProbeCoordinate<LINK extends Link> implements Serializable {
         ImmutableTensor1 new_probs = PathInference
                 .buildProbabilities(new_probabilities);
         return new ProbeCoordinate<LINK>(id(), time(), coordinate(), spots(),
-                new_probs, speed(), heading(), hired(), hdop());
+                new_probs, speed(), heading(), hired(), hdop(), spotDistances());
     }
 
     public <LINK2 extends Link> ProbeCoordinate<LINK2> clone(
@@ -188,7 +233,8 @@ public class ProbeCoordinate<LINK extends Link> implements Serializable {
      */
     public ProbeCoordinate<LINK> clone(Time new_time) throws NetconfigException {
         return new ProbeCoordinate<LINK>(id(), new_time, coordinate(), spots(),
-                probabilities(), speed(), heading(), hired(), hdop());
+                probabilities(), speed(), heading(), hired(), hdop(),
+                spotDistances());
     }
 
     /**
@@ -445,4 +491,12 @@ public class ProbeCoordinate<LINK extends Link> implements Serializable {
     public Float hdop() {
         return hdop_;
     }
+
+    /**
+     * @return the distances between the coordinate and the spots (NaN if
+     *         unknown), or null if the projector did not provide them.
+     */
+    public ImmutableTensor1 spotDistances() {
+        return spotDistances_;
+    }
 } // ProbeCoordinate
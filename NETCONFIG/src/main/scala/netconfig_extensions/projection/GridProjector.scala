@@ -0,0 +1,286 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import collection.mutable.ArrayBuffer
+import core.Coordinate
+import netconfig.{ Link, Spot }
+
+/**
+ * A projector that hashes the segments into a uniform grid of square cells.
+ *
+ * When the search radius is roughly constant (the projection radius of the
+ * filter), a grid with cells of about the size of the radius only needs to
+ * look at the 4 to 9 cells around the point, which is cheaper than walking
+ * down a tree.
+ *
+ * The grid is sparse: the non-empty cells are stored in an open-addressing
+ * hash table, and the segments of each cell in compressed sparse row (CSR)
+ * arrays (the segments of cell i are cell_segs(cell_start(i) until
+ * cell_start(i+1))). A segment is registered in all the cells that its
+ * bounding box overlaps.
+ *
+ * If index_file is set (the file of the segments, see
+ * [[netconfig_extensions.projection.ProjectorIndex]]), the arrays of the
+ * grid are read from a file next to it, or saved there once built.
+ *
+ * This class is thread-safe.
+ *
+ * @param cell_size the side of the cells, in meters. It should be close to
+ *   the search radius of the queries.
+ */
+class GridProjector[L <: Link](val links: Seq[L], val cell_size: Double = 100.0, segments: SegmentStore = null,
+  index_file: String = null)
+  extends Projector[L] {
+
+  override protected def prebuiltSegments = segments
+
+  assert(cell_size > 0, "Invalid cell size: " + cell_size)
+
+  private[this] val num_segments = store.size
+
+  // The frame of the grid.
+  private[this] val frame = if (num_segments > 0) {
+    PlanarFrame.centeredAt(store.start(0))
+  } else {
+    null
+  }
+
+  // The distances in the frames of the segments are at least this fraction
+  // of the distances in the frame of the grid.
+  private[this] val min_scale = if (num_segments > 0) {
+    store.scaleRatios(frame)._1
+  } else {
+    1.0
+  }
+
+  // The boxes in the frame of the grid are enlarged to account for the
+  // difference with the frames of the segments (see
+  // SegmentStore.scaleRatios).
+  private[this] def margin(d: Double): Double = d / min_scale
+
+  // Hash table of the non-empty cells: keys and index of the cell.
+  private[this] var table_keys: Array[Long] = new Array[Long](1)
+  private[this] var table_cells: Array[Int] = Array(-1)
+  private[this] var table_mask = 0
+  // CSR arrays.
+  private[this] var cell_start: Array[Int] = Array(0)
+  private[this] var cell_segs: Array[Int] = new Array[Int](0)
+
+  build()
+
+  private[this] def cellKey(ix: Int, iy: Int): Long = (ix.toLong << 32) | (iy.toLong & 0xFFFFFFFFL)
+
+  private[this] def cellIndex(x: Double): Int = math.floor(x / cell_size).toInt
+
+  private[this] def hash(key: Long): Int = {
+    val h = key * 0x9E3779B97F4A7C15L
+    (h ^ (h >>> 32)).toInt
+  }
+
+  /**
+   * The index of the cell, or -1 if the cell is empty.
+   */
+  private[this] def findCell(key: Long): Int = {
+    var i = hash(key) & table_mask
+    while (table_cells(i) >= 0 && table_keys(i) != key) {
+      i = (i + 1) & table_mask
+    }
+    table_cells(i)
+  }
+
+  private[this] def build(): Unit = {
+    if (num_segments == 0) {
+      return
+    }
+    val saved = if (index_file != null) {
+      ProjectorIndex.openArrays(index_file, "grid", store, cell_size)
+    } else {
+      None
+    }
+    saved match {
+      case Some(arrays) => {
+        table_cells = arrays.ints(0)
+        cell_start = arrays.ints(1)
+        cell_segs = arrays.ints(2)
+        table_keys = arrays.longs(0)
+        table_mask = table_keys.length - 1
+        logInfo("Grid read from the index: %d segments, %d cells" format (num_segments, cell_start.length - 1))
+      }
+      case None => {
+        buildGrid()
+        if (index_file != null) {
+          ProjectorIndex.saveArrays(index_file, "grid", store, cell_size,
+            new ProjectorIndex.IndexArrays(Seq(table_cells, cell_start, cell_segs), Seq.empty, Seq(table_keys)))
+        }
+      }
+    }
+  }
+
+  private[this] def buildGrid(): Unit = {
+    val min_ix = new Array[Int](num_segments)
+    val min_iy = new Array[Int](num_segments)
+    val max_ix = new Array[Int](num_segments)
+    val max_iy = new Array[Int](num_segments)
+    for (i <- 0 until num_segments) {
+      val (x0, y0) = (frame.x(store.startLat(i)), frame.y(store.startLon(i)))
+      val (x1, y1) = (frame.x(store.endLat(i)), frame.y(store.endLon(i)))
+      min_ix(i) = cellIndex(math.min(x0, x1) - 1.0)
+      min_iy(i) = cellIndex(math.min(y0, y1) - 1.0)
+      max_ix(i) = cellIndex(math.max(x0, x1) + 1.0)
+      max_iy(i) = cellIndex(math.max(y0, y1) + 1.0)
+    }
+    // First pass: the cells and their number of segments.
+    val cell_index = new collection.mutable.HashMap[Long, Int]
+    val counts = new ArrayBuffer[Int]
+    for (i <- 0 until num_segments; ix <- min_ix(i) to max_ix(i); iy <- min_iy(i) to max_iy(i)) {
+      val cell = cell_index.getOrElseUpdate(cellKey(ix, iy), {
+        counts += 0
+        counts.length - 1
+      })
+      counts(cell) += 1
+    }
+    val num_cells = counts.length
+    cell_start = new Array[Int](num_cells + 1)
+    for (j <- 0 until num_cells) {
+      cell_start(j + 1) = cell_start(j) + counts(j)
+    }
+    // Second pass: fill the rows.
+    cell_segs = new Array[Int](cell_start(num_cells))
+    val fill = cell_start.clone()
+    for (i <- 0 until num_segments; ix <- min_ix(i) to max_ix(i); iy <- min_iy(i) to max_iy(i)) {
+      val cell = cell_index(cellKey(ix, iy))
+      cell_segs(fill(cell)) = i
+      fill(cell) += 1
+    }
+    // The hash table, at most half full.
+    var table_size = 2
+    while (table_size < 2 * num_cells) {
+      table_size *= 2
+    }
+    table_mask = table_size - 1
+    table_keys = new Array[Long](table_size)
+    table_cells = Array.fill(table_size)(-1)
+    for ((key, cell) <- cell_index) {
+      var i = hash(key) & table_mask
+      while (table_cells(i) >= 0) {
+        i = (i + 1) & table_mask
+      }
+      table_keys(i) = key
+      table_cells(i) = cell
+    }
+    logInfo("Grid built: %d segments, %d cells, %d entries" format (num_segments, num_cells, cell_segs.length))
+  }
+
+  private[this] class QueryState {
+    // The segments already visited by the current query have the current
+    // stamp.
+    val seg_stamps = new Array[Int](num_segments)
+    var stamp = 0
+    // The candidate segments of the current query.
+    var candidates = new Array[Int](64)
+    var num_candidates = 0
+
+    def reset(): Unit = {
+      if (stamp == Int.MaxValue) {
+        java.util.Arrays.fill(seg_stamps, 0)
+        stamp = 0
+      }
+      stamp += 1
+      num_candidates = 0
+    }
+
+    def add(seg: Int): Unit = {
+      if (num_candidates == candidates.length) {
+        candidates = java.util.Arrays.copyOf(candidates, 2 * num_candidates)
+      }
+      candidates(num_candidates) = seg
+      num_candidates += 1
+    }
+  }
+
+  private[this] val query_state = new ThreadLocal[QueryState] {
+    override def initialValue(): QueryState = new QueryState
+  }
+
+  /**
+   * Collects in the state the segments registered in the cells that overlap
+   * the square of the given radius around the point, once per segment.
+   */
+  private[this] def collectCandidates(c: Coordinate, radius: Double, state: QueryState): Unit = {
+    state.reset()
+    val stamp = state.stamp
+    val r = margin(radius)
+    val px = frame.x(c)
+    val py = frame.y(c)
+    val ix0 = cellIndex(px - r)
+    val ix1 = cellIndex(px + r)
+    val iy0 = cellIndex(py - r)
+    val iy1 = cellIndex(py + r)
+    val num_cells = cell_start.length - 1
+    if ((ix1 - ix0 + 1).toLong * (iy1 - iy0 + 1).toLong > num_cells) {
+      // Very large radius: all the segments are candidates.
+      var i = 0
+      while (i < num_segments) {
+        state.add(i)
+        i += 1
+      }
+      return
+    }
+    var ix = ix0
+    while (ix <= ix1) {
+      var iy = iy0
+      while (iy <= iy1) {
+        val cell = findCell(cellKey(ix, iy))
+        if (cell >= 0) {
+          var j = cell_start(cell)
+          val end = cell_start(cell + 1)
+          while (j < end) {
+            val seg = cell_segs(j)
+            if (state.seg_stamps(seg) != stamp) {
+              state.seg_stamps(seg) = stamp
+              state.add(seg)
+            }
+            j += 1
+          }
+        }
+        iy += 1
+      }
+      ix += 1
+    }
+  }
+
+  override def project(c: Coordinate,
+    radius: Double,
+    maxReturns: Int): Projections[L] = {
+    if (num_segments == 0 || maxReturns <= 0) {
+      return new Projections(new Array[Spot[L]](0), new Array[Double](0))
+    }
+    val state = query_state.get
+    collectCandidates(c, radius + store.tolerance, state)
+    closestLinks(c, radius, maxReturns, state.candidates, state.num_candidates)
+  }
+
+  override def getCandidateSegmentIdsWithinRadius(c: Coordinate, radius: Double): Array[Int] = {
+    if (num_segments == 0) {
+      return new Array[Int](0)
+    }
+    val state = query_state.get
+    collectCandidates(c, radius, state)
+    java.util.Arrays.copyOf(state.candidates, state.num_candidates)
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import core.Coordinate
+import netconfig.Link
+
+/**
+ * The points of the links sampled every step meters (at the offsets 0, step,
+ * 2 step... up to the length of the link), used by the grid projection.
+ * The offsets are on the length of the link, which may differ slightly from
+ * the length of its geometry (see [[core.DistancePolicy]]): they are scaled
+ * to the geometry to find the points.
+ *
+ * The samples are computed once and stored in planar primitive arrays: the
+ * samples of the link i are the indexes link_start(i) until link_start(i+1),
+ * in the frame of the tile of the first point of the link (see
+ * [[netconfig_extensions.projection.PlanarFrame]]). The samples of each link
+ * are grouped in chunks of chunkSize consecutive samples with a bounding box,
+ * so a query only looks at the samples of the chunks close enough to the
+ * point.
+ */
+private[projection] final class GridSamples(val links: Array[Link], val step: Double) {
+
+  import GridSamples.chunkSize
+
+  private[this] val link_index = new java.util.IdentityHashMap[Link, Integer]
+
+  private[this] val link_frame = new Array[PlanarFrame](links.length)
+
+  private[this] val link_start = new Array[Int](links.length + 1)
+
+  // Coordinates of the samples. Float is precise enough (millimeters) within
+  // a tile.
+  private[this] val xs: Array[Float] = {
+    for (i <- 0 until links.length) {
+      link_start(i + 1) = link_start(i) + numSamples(links(i))
+    }
+    new Array[Float](link_start(links.length))
+  }
+  private[this] val ys = new Array[Float](xs.length)
+
+  // The chunks of the link i are the indexes link_chunk_start(i) until
+  // link_chunk_start(i+1). The chunk k of a link covers its samples
+  // k * chunkSize until (k + 1) * chunkSize.
+  private[this] val link_chunk_start = new Array[Int](links.length + 1)
+  for (i <- 0 until links.length) {
+    val n = link_start(i + 1) - link_start(i)
+    link_chunk_start(i + 1) = link_chunk_start(i) + (n + chunkSize - 1) / chunkSize
+  }
+  private[this] val num_chunks = link_chunk_start(links.length)
+  private[this] val chunk_min_x = new Array[Float](num_chunks)
+  private[this] val chunk_min_y = new Array[Float](num_chunks)
+  private[this] val chunk_max_x = new Array[Float](num_chunks)
+  private[this] val chunk_max_y = new Array[Float](num_chunks)
+
+  {
+    for (i <- 0 until links.length) {
+      val link = links(i)
+      link_index.put(link, i)
+      val geom = link.geoMultiLine
+      val frame = PlanarFrame.forCoordinate(geom.getFirstCoordinate)
+      link_frame(i) = frame
+      val n = link_start(i + 1) - link_start(i)
+      val length = link.length.toDouble
+      val scale = if (length > 0) geom.getLength / length else 1.0
+      val offsets = Array.tabulate(n)(k => math.min(k * step * scale, geom.getLength))
+      val lats = new Array[Double](n)
+      val lons = new Array[Double](n)
+      geom.getCoordinates(offsets, lats, lons)
+      for (k <- 0 until n) {
+        xs(link_start(i) + k) = frame.x(lats(k)).toFloat
+        ys(link_start(i) + k) = frame.y(lons(k)).toFloat
+      }
+    }
+    java.util.Arrays.fill(chunk_min_x, Float.MaxValue)
+    java.util.Arrays.fill(chunk_min_y, Float.MaxValue)
+    java.util.Arrays.fill(chunk_max_x, -Float.MaxValue)
+    java.util.Arrays.fill(chunk_max_y, -Float.MaxValue)
+    for (i <- 0 until links.length; j <- link_start(i) until link_start(i + 1)) {
+      val chunk = link_chunk_start(i) + (j - link_start(i)) / chunkSize
+      chunk_min_x(chunk) = math.min(chunk_min_x(chunk), xs(j))
+      chunk_min_y(chunk) = math.min(chunk_min_y(chunk), ys(j))
+      chunk_max_x(chunk) = math.max(chunk_max_x(chunk), xs(j))
+      chunk_max_y(chunk) = math.max(chunk_max_y(chunk), ys(j))
+    }
+  }
+
+  /**
+   * The number of samples of a link: same as (0.0 to length by step).
+   */
+  private[this] def numSamples(link: Link): Int = {
+    val length = link.length.toDouble
+    if (length < 0) {
+      0
+    } else {
+      (0.0 to length by step).length
+    }
+  }
+
+  def numSamples: Int = xs.length
+
+  /**
+   * Calls f(offset, distance) for each sample of the link at a distance less
+   * than radius from the point.
+   */
+  def foreachSampleWithinRadius(link: Link, c: Coordinate, radius: Double)(f: (Double, Double) => Unit): Unit = {
+    val idx = link_index.get(link)
+    if (idx == null) {
+      return
+    }
+    val i = idx.intValue
+    val frame = link_frame(i)
+    val qx = frame.x(c)
+    val qy = frame.y(c)
+    val r2 = radius * radius
+    val start = link_start(i)
+    val end = link_start(i + 1)
+    var chunk = link_chunk_start(i)
+    var j = start
+    while (j < end) {
+      val chunk_end = math.min(end, j + chunkSize)
+      val dx = math.max(0.0, math.max(chunk_min_x(chunk) - qx, qx - chunk_max_x(chunk)))
+      val dy = math.max(0.0, math.max(chunk_min_y(chunk) - qy, qy - chunk_max_y(chunk)))
+      if (dx * dx + dy * dy < r2) {
+        while (j < chunk_end) {
+          val ex = xs(j) - qx
+          val ey = ys(j) - qy
+          val d2 = ex * ex + ey * ey
+          if (d2 < r2) {
+            f((j - start) * step, math.sqrt(d2))
+          }
+          j += 1
+        }
+      } else {
+        j = chunk_end
+      }
+      chunk += 1
+    }
+  }
+}
+
+private[projection] object GridSamples {
+  /**
+   * The number of samples per bounding box.
+   */
+  val chunkSize = 16
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+/**
+ * Sorts arrays of indices by the values of a key, without boxing.
+ */
+private[projection] object IndexSort {
+
+  /**
+   * Sorts idx(from until to) by increasing keys(idx(i)).
+   */
+  def sort(idx: Array[Int], from: Int, to: Int, keys: Array[Double]): Unit = {
+    var lo = from
+    var hi = to - 1
+    // Three-way quicksort (the keys often have many duplicates), recursing
+    // on the smaller part and looping on the larger part.
+    while (hi - lo > 16) {
+      val mid = (lo + hi) >>> 1
+      val pivot = median(keys(idx(lo)), keys(idx(mid)), keys(idx(hi)))
+      // Invariant: [lo, lt) < pivot, [lt, i) == pivot, (gt, hi] > pivot
+      var lt = lo
+      var gt = hi
+      var i = lo
+      while (i <= gt) {
+        val k = keys(idx(i))
+        if (k < pivot) {
+          swap(idx, lt, i)
+          lt += 1
+          i += 1
+        } else if (k > pivot) {
+          swap(idx, i, gt)
+          gt -= 1
+        } else {
+          i += 1
+        }
+      }
+      if (lt - lo < hi - gt) {
+        sort(idx, lo, lt, keys)
+        lo = gt + 1
+      } else {
+        sort(idx, gt + 1, hi + 1, keys)
+        hi = lt - 1
+      }
+    }
+    // Insertion sort for the small ranges.
+    var i = lo + 1
+    while (i <= hi) {
+      val v = idx(i)
+      val k = keys(v)
+      var j = i - 1
+      while (j >= lo && keys(idx(j)) > k) {
+        idx(j + 1) = idx(j)
+        j -= 1
+      }
+      idx(j + 1) = v
+      i += 1
+    }
+  }
+
+  private[this] def median(a: Double, b: Double, c: Double): Double = {
+    math.max(math.min(a, b), math.min(math.max(a, b), c))
+  }
+
+  private[this] def swap(idx: Array[Int], i: Int, j: Int): Unit = {
+    val t = idx(i)
+    idx(i) = idx(j)
+    idx(j) = t
+  }
+}
+
+/**
+ * A binary min-heap of (key, value) pairs stored in primitive arrays, that
+ * can be reused between queries without allocating.
+ */
+private[projection] final class MinHeap {
+  private[this] var keys = new Array[Double](64)
+  private[this] var values = new Array[Int](64)
+  private[this] var n = 0
+
+  def isEmpty: Boolean = n == 0
+
+  def clear(): Unit = {
+    n = 0
+  }
+
+  def push(key: Double, value: Int): Unit = {
+    if (n == keys.length) {
+      keys = java.util.Arrays.copyOf(keys, 2 * n)
+      values = java.util.Arrays.copyOf(values, 2 * n)
+    }
+    var i = n
+    n += 1
+    while (i > 0 && keys((i - 1) >>> 1) > key) {
+      val parent = (i - 1) >>> 1
+      keys(i) = keys(parent)
+      values(i) = values(parent)
+      i = parent
+    }
+    keys(i) = key
+    values(i) = value
+  }
+
+  /**
+   * The smallest key.
+   */
+  def minKey: Double = keys(0)
+
+  /**
+   * Removes the element with the smallest key and returns its value.
+   */
+  def pop(): Int = {
+    val res = values(0)
+    n -= 1
+    if (n > 0) {
+      val key = keys(n)
+      val value = values(n)
+      var i = 0
+      var done = false
+      while (!done) {
+        val l = 2 * i + 1
+        if (l >= n) {
+          done = true
+        } else {
+          val c = if (l + 1 < n && keys(l + 1) < keys(l)) l + 1 else l
+          if (keys(c) < key) {
+            keys(i) = keys(c)
+            values(i) = values(c)
+            i = c
+          } else {
+            done = true
+          }
+        }
+      }
+      keys(i) = key
+      values(i) = value
+    }
+    res
+  }
+}
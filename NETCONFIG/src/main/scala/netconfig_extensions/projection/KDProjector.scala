@@ -20,17 +20,16 @@ import core.Coordinate
 import core_extensions.CoordinateGeometry
 import netconfig.{ Link, Spot }
 import core_extensions.MMLogging
-import collection.immutable.{ HashMap => IMap }
-import collection.mutable.{ HashMap => MMap, PriorityQueue }
-import math.Ordering
 
 /**
  * Efficient projector that uses a KD-tree.
  */
-class KDProjector[L <: Link](val links: Seq[L])
+class KDProjector[L <: Link](val links: Seq[L], segments: SegmentStore = null)
   extends Projector[L] {
 
-  val center = segments.keys.head.start
+  override protected def prebuiltSegments = segments
+
+  val center = store.start(0)
   val (dlat, dlon) = CoordinateGeometry.localGeometry(center)
 
   // Build mapping segments => euclidian segments
@@ -41,9 +40,10 @@ class KDProjector[L <: Link](val links: Seq[L])
   //    }).toArray
   // Build KD tree
   val tree = {
-    val euc_segments = segments.keys.map(seg => {
-      new EuclidianSegment(project(seg.start), project(seg.end), seg)
-    }).toArray
+    // The references are the ids of the segments.
+    val euc_segments = Array.tabulate(store.size)(i => {
+      new EuclidianSegment(project(store.start(i)), project(store.end(i)), i)
+    })
     KDTree.build(euc_segments)
   }
 
@@ -55,39 +55,8 @@ class KDProjector[L <: Link](val links: Seq[L])
     new EuclidianPoint(x1, y1)
   }
 
-  override def getCandidateSegmentsWithinRadius(c: Coordinate, radius: Double): Seq[Segment] = {
+  override def getCandidateSegmentIdsWithinRadius(c: Coordinate, radius: Double): Array[Int] = {
     val euc_segs = tree.segmentsWithinRadius(project(c), radius)
-    euc_segs.map(_.reference.asInstanceOf[Segment])
-  }
-
-  /**
-   * If you want a grid projection within the radius.
-   * FIXME: more documentation...
-   */
-  override def getGridProjection(c: Coordinate,
-    radius: Double,
-    max_returns: Int,
-    grid_step: Double): Array[Spot[L]] = {
-    val closest_projs = getClosestLinks(c, radius, max_returns)
-    val c_euc = project(c)
-    closest_projs.flatMap(p => {
-      val link = p.link
-      val geom = link.geoMultiLine
-      (0.0 to link.length.toDouble by grid_step).flatMap(offset => {
-        val c2 = geom.getCoordinate(offset)
-        val c2_euc = project(c2)
-        // Much faster but imprecise way to compute distance
-        val d = math.sqrt((c2_euc.x - c_euc.x) * (c2_euc.x - c_euc.x) + (c2_euc.y - c_euc.y) * (c2_euc.y - c_euc.y))
-        if (d < radius)
-          Some((Spot.from(link, offset), d))
-        else
-          None
-      })
-    }).toArray
-      .sortBy(_._2)
-      .take(max_returns)
-      .map(_._1)
-      .toArray
+    euc_segs.map(_.reference.asInstanceOf[Int]).toArray
   }
-
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import scala.concurrent.forkjoin.ForkJoinPool
+import scala.concurrent.forkjoin.ForkJoinTask
+import scala.concurrent.forkjoin.RecursiveAction
+
+/**
+ * Runs the projection of batches of points on a shared fork-join pool.
+ *
+ * The pool has one worker per core. Its threads are daemon threads, so it
+ * does not need to be shut down.
+ */
+object ParallelProjection {
+
+  /**
+   * The number of elements below which a range is not split any more.
+   */
+  val grainSize = 32
+
+  lazy val pool = new ForkJoinPool()
+
+  private[this] class RangeTask(from: Int, to: Int, f: Int => Unit) extends RecursiveAction {
+    def compute(): Unit = {
+      if (to - from <= grainSize) {
+        var i = from
+        while (i < to) {
+          f(i)
+          i += 1
+        }
+      } else {
+        val mid = (from + to) >>> 1
+        ForkJoinTask.invokeAll(new RangeTask(from, mid, f), new RangeTask(mid, to, f))
+      }
+    }
+  }
+
+  /**
+   * Calls f(i) for all i in 0 until n, in parallel. Returns when all the
+   * calls are done. The exceptions thrown by f are rethrown.
+   */
+  def parallelFor(n: Int)(f: Int => Unit): Unit = {
+    if (n <= grainSize) {
+      for (i <- 0 until n) {
+        f(i)
+      }
+    } else {
+      pool.invoke(new RangeTask(0, n, f))
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import java.util.concurrent.ConcurrentHashMap
+import core.Coordinate
+import core_extensions.CoordinateGeometry
+
+/**
+ * A local planar frame, in which the coordinates are expressed in meters
+ * from an origin.
+ *
+ * As in [[netconfig_extensions.projection.EuclidianMapping]], x follows the
+ * latitude and y follows the longitude. The scale of the frame is computed
+ * once, so converting a coordinate to the frame costs two multiplications
+ * instead of a geodesic distance.
+ */
+final class PlanarFrame(
+  val origin_lat: Double,
+  val origin_lon: Double,
+  val dlat: Double,
+  val dlon: Double) {
+
+  def x(c: Coordinate): Double = (c.lat - origin_lat) * dlat
+
+  def y(c: Coordinate): Double = (c.lon - origin_lon) * dlon
+
+  def x(lat: Double): Double = (lat - origin_lat) * dlat
+
+  def y(lon: Double): Double = (lon - origin_lon) * dlon
+
+  /**
+   * The coordinate of a point of the frame.
+   */
+  def coordinate(x: Double, y: Double, srid: Int): Coordinate = {
+    new Coordinate(srid, origin_lat + x / dlat, origin_lon + y / dlon)
+  }
+}
+
+/**
+ * The planar frames of the tiles of the earth.
+ *
+ * The geodesic coordinates are split in square tiles of tileSize degrees
+ * (about 5km), each with its own frame: within a tile, the planar distances
+ * are within a fraction of a percent of the geodesic distances. The cartesian
+ * coordinates use a single frame.
+ */
+object PlanarFrame {
+
+  val tileSize = 0.05
+
+  private[this] val frames = new ConcurrentHashMap[(Int, Int), PlanarFrame]
+
+  private[this] lazy val cartesian = {
+    val origin = new Coordinate(Coordinate.SRID_CARTESIAN, 0, 0)
+    val (dlat, dlon) = CoordinateGeometry.localGeometry(origin)
+    new PlanarFrame(0, 0, dlat, dlon)
+  }
+
+  /**
+   * A frame centered on a coordinate (for structures that need a single
+   * frame over a whole network, with a lower accuracy far from the center).
+   */
+  def centeredAt(c: Coordinate): PlanarFrame = {
+    val (dlat, dlon) = CoordinateGeometry.localGeometry(c)
+    new PlanarFrame(c.lat, c.lon, dlat, dlon)
+  }
+
+  /**
+   * The frame of the tile that contains the coordinate.
+   */
+  def forCoordinate(c: Coordinate): PlanarFrame = {
+    if (c.srid.intValue == Coordinate.SRID_CARTESIAN) {
+      return cartesian
+    }
+    val key = (math.floor(c.lat / tileSize).toInt, math.floor(c.lon / tileSize).toInt)
+    val frame = frames.get(key)
+    if (frame != null) {
+      frame
+    } else {
+      val origin = new Coordinate(c.srid, (key._1 + 0.5) * tileSize, (key._2 + 0.5) * tileSize)
+      val (dlat, dlon) = CoordinateGeometry.localGeometry(origin)
+      val new_frame = new PlanarFrame(origin.lat, origin.lon, dlat, dlon)
+      val previous = frames.putIfAbsent(key, new_frame)
+      if (previous == null) new_frame else previous
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import core.Coordinate
+import core_extensions.StripedCounter
+import netconfig.{ Link, Spot }
+
+/**
+ * The key of a cell in the cache: the cell, and the parameters of the query
+ * (max_returns is 0 when it does not change the value).
+ */
+private[projection] case class ProjectionCellKey(ix: Int, iy: Int, radius: Double, max_returns: Int)
+
+/**
+ * A bounded cache of the projections, by cell of a square grid.
+ *
+ * The vehicles stop at the same places and drive on the same streets, so the
+ * same locations are projected over and over. The coordinates are quantized
+ * into square cells of side cell_size (meters), and the cache keeps the work
+ * done for each cell, for each radius (and number of returns):
+ *  - exact mode (the default): the cache keeps the candidate segments of the
+ *    cell, which are all the segments within radius (rounded up to a
+ *    multiple of the cell size) + half the diagonal of the cell from its
+ *    center. They contain all the segments within radius of
+ *    any point of the cell, so ranking them with the coordinate of the query
+ *    returns exactly the same spots as the projector, without searching the
+ *    spatial index. The cell size only trades the number of hits for the
+ *    number of candidates.
+ *  - approximate mode: the cache keeps the spots of the center of the cell,
+ *    which are returned for all the points of the cell. The distances (hence
+ *    the selection of the links) are off by at most half the diagonal of the
+ *    cell, and the offsets by as much.
+ *
+ * The least recently used cells are evicted first. This class is
+ * thread-safe.
+ *
+ * @param max_size the maximum number of cells kept in the cache.
+ */
+final class ProjectionCache[L <: Link](
+  val projector: Projector[L],
+  val cell_size: Double,
+  max_size: Int,
+  val exact: Boolean = true) {
+
+  assert(cell_size > 0, "Invalid cell size: " + cell_size)
+
+  private[this] val frame = if (projector.store.size > 0) {
+    PlanarFrame.centeredAt(projector.store.start(0))
+  } else {
+    null
+  }
+
+  // Half the diagonal of a cell, enlarged to account for the difference
+  // between the frame of the cache and the frames of the segments (see
+  // SegmentStore.scaleRatios), and for the simplification of the segments.
+  private[this] val margin = if (frame != null) {
+    0.5 * math.sqrt(2) * cell_size * projector.store.scaleRatios(frame)._2 + projector.store.tolerance
+  } else {
+    0.0
+  }
+
+  private[this] val cache: Cache[ProjectionCellKey, AnyRef] =
+    (CacheBuilder.newBuilder()).maximumSize(max_size).build()
+
+  private[this] val hits = new StripedCounter
+  private[this] val misses = new StripedCounter
+
+  def numHits: Long = hits.sum
+
+  def numMisses: Long = misses.sum
+
+  def size: Long = cache.size
+
+  def getClosestLinks(c: Coordinate,
+    radius: Double,
+    maxReturns: Int): Array[Spot[L]] = {
+    if (frame == null) {
+      return projector.getClosestLinks(c, radius, maxReturns)
+    }
+    val ix = math.floor(frame.x(c) / cell_size).toInt
+    val iy = math.floor(frame.y(c) / cell_size).toInt
+    if (exact) {
+      val candidates = cellCandidates(ix, iy, radius)
+      projector.closestLinks(c, radius, maxReturns, candidates, candidates.length).spots
+    } else {
+      val key = ProjectionCellKey(ix, iy, radius, maxReturns)
+      val cached = cache.getIfPresent(key)
+      val spots = if (cached != null) {
+        hits.increment()
+        cached.asInstanceOf[Array[Spot[L]]]
+      } else {
+        misses.increment()
+        val res = projector.getClosestLinks(center(ix, iy), radius, maxReturns)
+        cache.put(key, res)
+        res
+      }
+      spots.clone()
+    }
+  }
+
+  /**
+   * Same as the projector's project. In the approximate mode, the distances
+   * are unknown (NaN): the spots are those of the center of the cell.
+   */
+  def project(c: Coordinate,
+    radius: Double,
+    maxReturns: Int): Projections[L] = {
+    if (frame == null) {
+      return projector.project(c, radius, maxReturns)
+    }
+    if (exact) {
+      val ix = math.floor(frame.x(c) / cell_size).toInt
+      val iy = math.floor(frame.y(c) / cell_size).toInt
+      val candidates = cellCandidates(ix, iy, radius)
+      projector.closestLinks(c, radius, maxReturns, candidates, candidates.length)
+    } else {
+      val spots = getClosestLinks(c, radius, maxReturns)
+      new Projections(spots, Array.fill(spots.length)(Double.NaN))
+    }
+  }
+
+  /**
+   * Same as the projector's getClosestLinks with a heading. Only the exact
+   * mode uses the cache: the approximate spots of a cell do not depend on
+   * the heading.
+   */
+  def getClosestLinks(c: Coordinate,
+    radius: Double,
+    maxReturns: Int,
+    heading: Double,
+    tolerance: Double): Array[Spot[L]] = {
+    project(c, radius, maxReturns, heading, tolerance).spots
+  }
+
+  /**
+   * Same as getClosestLinks with a heading, with the distances of the spots.
+   */
+  def project(c: Coordinate,
+    radius: Double,
+    maxReturns: Int,
+    heading: Double,
+    tolerance: Double): Projections[L] = {
+    if (frame == null || !exact) {
+      return projector.project(c, radius, maxReturns, heading, tolerance)
+    }
+    val ix = math.floor(frame.x(c) / cell_size).toInt
+    val iy = math.floor(frame.y(c) / cell_size).toInt
+    val candidates = cellCandidates(ix, iy, radius)
+    projector.closestLinks(c, radius, maxReturns, candidates, candidates.length, heading, tolerance)
+  }
+
+  /**
+   * The candidate segments of a cell (exact mode), for all the radii up to
+   * the next multiple of the cell size: the adaptive radii of the points
+   * share the same few entries, at the cost of at most one cell size of
+   * extra candidates.
+   */
+  private[this] def cellCandidates(ix: Int, iy: Int, radius: Double): Array[Int] = {
+    val max_radius = math.max(1.0, math.ceil(radius / cell_size)) * cell_size
+    val key = ProjectionCellKey(ix, iy, max_radius, 0)
+    val cached = cache.getIfPresent(key)
+    if (cached != null) {
+      hits.increment()
+      cached.asInstanceOf[Array[Int]]
+    } else {
+      misses.increment()
+      val ids = projector.getCandidateSegmentIdsWithinRadius(center(ix, iy), max_radius + margin)
+      cache.put(key, ids)
+      ids
+    }
+  }
+
+  private[this] def center(ix: Int, iy: Int): Coordinate = {
+    frame.coordinate((ix + 0.5) * cell_size, (iy + 0.5) * cell_size, projector.store.srid)
+  }
+}
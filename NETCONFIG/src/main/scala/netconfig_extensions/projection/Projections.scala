@@ -0,0 +1,37 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import netconfig.{ Link, Spot }
+
+/**
+ * The closest links of a coordinate, as returned by
+ * [[netconfig_extensions.projection.Projector]].project: the spots, by
+ * increasing distance, and the distance (meters) between the coordinate and
+ * each spot.
+ *
+ * The distances are computed in the planar frames of the segments (see
+ * [[netconfig_extensions.projection.PlanarFrame]]). A NaN distance means the
+ * distance of this spot is unknown.
+ */
+final class Projections[L <: Link](val spots: Array[Spot[L]], val distances: Array[Double]) {
+  assert(spots.length == distances.length)
+
+  def size: Int = spots.length
+
+  def isEmpty: Boolean = spots.isEmpty
+}
@@ -20,8 +20,7 @@ import core.Coordinate
 import core_extensions.CoordinateGeometry
 import netconfig.{ Link, Spot }
 import core_extensions.MMLogging
-import collection.immutable.{ HashMap => IMap }
-import math.Ordering
+import collection.mutable.ArrayBuffer
 
 /**
  * A projector class.
@@ -29,7 +28,8 @@ import math.Ordering
  * This trait implements most of the logic for projecting a [[core.Coordinate]]
  * object onto a sequence of [[netconfig.Spot]] objects.
  *
- * The only function users should be using is '''getClosestLinks'''.
+ * The only functions users should be using are '''getClosestLinks''' and
+ * '''project''' (which also returns the distances of the spots).
  *
  * The concrete implementations for this class are provided by
  * [[netconfig_extensions.projection.KDProjector]]
@@ -49,86 +49,156 @@ trait Projector[L <: Link] extends MMLogging {
    */
   val links: Seq[L]
 
-  val searchRadius: Double = 30.0
-
   /**
-   * Computes the cumulative value of an array.
+   * The maximum length of the segments.
    */
-  private def cumsum(xs: Array[Double]): Array[Double] = {
-    for (i <- 1 until xs.length) {
-      xs(i) += xs(i - 1)
-    }
-    xs
-  }
+  val searchRadius: Double = Projector.defaultSearchRadius
 
   /**
-   * Decomposes all the GeoMultLine objects into sequences of segments and
-   * builds a map from segments to the original link, and the offset on this
-   * link.
+   * The segments of the links, if they were already computed (for example
+   * read from a file with [[netconfig_extensions.projection.ProjectorIndex]]).
+   * They must have been computed from the same sequence of links.
    */
-  protected val segments = IMap.empty[Segment, (L, Double)] ++ links.flatMap(l => {
-    val geom = l.geoMultiLine
-    val length = geom.getLength
-    if (math.abs(length - l.length) > 1) {
-      logWarning("Bad length: " + length + " " + l.length + " " + l)
-    }
-    val coords = geom.getCoordinates
-    val coord_pairs = coords.dropRight(1) zip coords.drop(1)
-    val segments = coord_pairs.flatMap(z => {
-      val (start, end) = z
-      // Add some extra intermediate coordinates to make sure there is
-      // always one coordinate within the radius of the search circle.
-      // Necessary for very long segments.
-      val s = new Segment(start, end)
-      s.breakIntoSmallerSegments(searchRadius)
-    })
-    val cum_lengths = Seq(0.0) ++ cumsum(segments.map(_.length).toArray).dropRight(1)
-    val res = (segments zip cum_lengths).map(z => (z._1, (l, z._2)))
-    if (res.isEmpty) {
-      logWarning("The projector has an empty set of segments!!")
-    }
-    res
-  })
+  protected def prebuiltSegments: SegmentStore = null
 
   /**
-   * Inner ordering of tuples.
+   * Decomposes all the GeoMultLine objects into sequences of segments, with
+   * dense ids, and stores for each segment its link and its offset on this
+   * link.
    */
-  private val ordering = new Ordering[(Double, L, Double)] {
-    def compare(x1: (Double, L, Double), x2: (Double, L, Double)) = x1._1.compare(x2._1)
+  private[projection] val store = if (prebuiltSegments != null) {
+    prebuiltSegments
+  } else {
+    SegmentStore.fromLinks(links, searchRadius)
   }
 
   /**
-   * Returns a set of segments.
+   * Returns the ids of a set of segments (see
+   * [[netconfig_extensions.projection.SegmentStore]]).
    *
    * This set contains at least all the segments within a radius of the
-   * given [[core.Coordinate]].
+   * given [[core.Coordinate]]. It may contain duplicates. If the segments
+   * were simplified, the distances are the distances to the simplified
+   * segments.
    *
    * This set is computed efficiently in [[netconfig_extensions.projection.KDProjector]]
    * and very simply in [[netconfig_extensions.projection.NaiveProjector]].
    */
-  protected def getCandidateSegmentsWithinRadius(c: Coordinate, radius: Double): Seq[Segment]
+  protected[projection] def getCandidateSegmentIdsWithinRadius(c: Coordinate, radius: Double): Array[Int]
+
+  /**
+   * The closest links found by a query, reused between the queries of a
+   * thread.
+   */
+  private[this] class Selection {
+    // The links already found by the current query have the current stamp.
+    val link_stamps = new Array[Int](store.links.length)
+    var stamp = 0
+    // The best distance and offset of the links found.
+    val link_distances = new Array[Double](store.links.length)
+    val link_offsets = new Array[Double](store.links.length)
+    var found = new Array[Int](16)
+    var num_found = 0
+
+    def reset(): Unit = {
+      if (stamp == Int.MaxValue) {
+        java.util.Arrays.fill(link_stamps, 0)
+        stamp = 0
+      }
+      stamp += 1
+      num_found = 0
+    }
+
+    def add(link_id: Int, distance: Double, offset: Double): Unit = {
+      if (link_stamps(link_id) != stamp) {
+        link_stamps(link_id) = stamp
+        if (num_found == found.length) {
+          found = java.util.Arrays.copyOf(found, 2 * num_found)
+        }
+        found(num_found) = link_id
+        num_found += 1
+        link_distances(link_id) = distance
+        link_offsets(link_id) = offset
+      } else if (distance < link_distances(link_id)) {
+        link_distances(link_id) = distance
+        link_offsets(link_id) = offset
+      }
+    }
+  }
+
+  private[this] val selection = new ThreadLocal[Selection] {
+    override def initialValue(): Selection = new Selection
+  }
+
+  /**
+   * The grid samples of the links, by grid step (usually a single one).
+   */
+  private[this] val grid_samples = new java.util.concurrent.ConcurrentHashMap[Double, GridSamples]
+
+  private[this] def gridSamples(grid_step: Double): GridSamples = {
+    val samples = grid_samples.get(grid_step)
+    if (samples != null) {
+      samples
+    } else {
+      logInfo("Sampling the links every %f meters..." format grid_step)
+      val new_samples = new GridSamples(store.links, grid_step)
+      logInfo("%d samples" format new_samples.numSamples)
+      val previous = grid_samples.putIfAbsent(grid_step, new_samples)
+      if (previous == null) new_samples else previous
+    }
+  }
 
   /**
-   * If you want a grid projection within the radius.
-   * FIXME: more documentation...
+   * Projects the coordinate on a grid of points of the closest links: the
+   * points of the links sampled every grid_step meters.
+   *
+   * The samples are computed for all the links the first time a grid step is
+   * used.
+   *
+   * @return the (at most max_returns) samples of the closest links within
+   *   the radius, by increasing distance.
    */
   def getGridProjection(c: Coordinate,
     radius: Double,
     max_returns: Int,
     grid_step: Double): Array[Spot[L]] = {
-    val closest_projs = getClosestLinks(c, radius, max_returns)
-    closest_projs.flatMap(p => {
+    projectOnGrid(c, radius, max_returns, grid_step).spots
+  }
+
+  /**
+   * Same as getGridProjection, with the distances of the samples.
+   */
+  def projectOnGrid(c: Coordinate,
+    radius: Double,
+    max_returns: Int,
+    grid_step: Double): Projections[L] = {
+    projectOnGrid(c, radius, max_returns, grid_step, getClosestLinks(c, radius, max_returns))
+  }
+
+  /**
+   * Same as projectOnGrid, on the given closest links (found with a heading
+   * or through a cache, for example).
+   */
+  def projectOnGrid(c: Coordinate,
+    radius: Double,
+    max_returns: Int,
+    grid_step: Double,
+    closest_projs: Array[Spot[L]]): Projections[L] = {
+    val samples = gridSamples(grid_step)
+    val spots = new ArrayBuffer[Spot[L]]
+    val distances = new ArrayBuffer[Double]
+    for (p <- closest_projs) {
       val link = p.link
-      val geom = link.geoMultiLine
-      (0.0 to link.length.toDouble by grid_step).flatMap(offset => {
-        val c2 = geom.getCoordinate(offset)
-        val d = CoordinateGeometry.distance(c, c2)
-        if (d < radius)
-          Some(Spot.from(link, offset))
-        else
-          None
+      samples.foreachSampleWithinRadius(link, c, radius)((offset, d) => {
+        spots += Spot.from(link, offset)
+        distances += d
       })
-    }).toArray
+    }
+    val order = Array.range(0, spots.length)
+    val distance_array = distances.toArray
+    IndexSort.sort(order, 0, order.length, distance_array)
+    val selected = order.take(max_returns)
+    new Projections(selected.map(i => spots(i)), selected.map(i => distance_array(i)))
   }
 
   /**
@@ -148,29 +218,141 @@ trait Projector[L <: Link] extends MMLogging {
   def getClosestLinks(c: Coordinate,
     radius: Double,
     maxReturns: Int): Array[Spot[L]] = {
-    val candidates = getCandidateSegmentsWithinRadius(c, radius)
-
-    // a single statement: scala power...
-    candidates.flatMap(segment => {
-      val (link, cum_l) = segments(segment)
-      val (distance, offset, p) = segment.closestPoint(c, 0.1)
-      // Check the offset makes sense
-      assert(cum_l <= link.length, (link, link.length, offset, cum_l, distance, p))
-      assert(cum_l >= 0, (link, link.length, offset, cum_l, distance, p))
-      assert(offset >= 0, (link, link.length, offset, cum_l, distance, p))
-      assert(offset + cum_l <= link.length + 0.1, (link, link.length, offset, cum_l, distance, p))
-
-      val corrected_offset = math.min(offset + cum_l, link.length)
-      if (distance < radius)
-        Some((distance, link, corrected_offset))
-      else
-        None
-    }).groupBy(_._2)
-      .values
-      .map(_.min(ordering))
-      .toSeq
-      .sorted(ordering)
-      .take(maxReturns)
-      .map(z => Spot.from(z._2, z._3, 0)).toArray
+    project(c, radius, maxReturns).spots
+  }
+
+  /**
+   * Same as getClosestLinks, with the distance between the coordinate and
+   * each spot. The observation models can use these distances instead of
+   * computing them again.
+   */
+  def project(c: Coordinate,
+    radius: Double,
+    maxReturns: Int): Projections[L] = {
+    val candidates = getCandidateSegmentIdsWithinRadius(c, radius + store.tolerance)
+    closestLinks(c, radius, maxReturns, candidates, candidates.length)
+  }
+
+  /**
+   * Same as getClosestLinks, but only considers the segments whose bearing
+   * is within tolerance degrees of the heading: a vehicle that reports its
+   * heading is not projected on the opposite direction of a two-way street.
+   *
+   * @param heading the heading of the vehicle, in degrees clockwise from the
+   *   north.
+   * @param tolerance the maximum difference between the bearing of a segment
+   *   and the heading (degrees, between 0 and 180).
+   */
+  def getClosestLinks(c: Coordinate,
+    radius: Double,
+    maxReturns: Int,
+    heading: Double,
+    tolerance: Double): Array[Spot[L]] = {
+    project(c, radius, maxReturns, heading, tolerance).spots
+  }
+
+  /**
+   * Same as getClosestLinks with a heading, with the distances of the spots.
+   */
+  def project(c: Coordinate,
+    radius: Double,
+    maxReturns: Int,
+    heading: Double,
+    tolerance: Double): Projections[L] = {
+    val candidates = getCandidateSegmentIdsWithinRadius(c, radius + store.tolerance)
+    closestLinks(c, radius, maxReturns, candidates, candidates.length, heading, tolerance)
+  }
+
+  /**
+   * Batch version of getClosestLinks: projects all the coordinates in
+   * parallel on the pool of [[netconfig_extensions.projection.ParallelProjection]].
+   *
+   * @param res a buffer for the results, reused if it is not null and large
+   *   enough (the closest links of coords(i) are stored in res(i)).
+   * @return the buffer that contains the results.
+   */
+  def getClosestLinks(coords: Array[Coordinate],
+    radius: Double,
+    maxReturns: Int,
+    res: Array[Array[Spot[L]]]): Array[Array[Spot[L]]] = {
+    val out = if (res != null && res.length >= coords.length) {
+      res
+    } else {
+      new Array[Array[Spot[L]]](coords.length)
+    }
+    ParallelProjection.parallelFor(coords.length)(i => {
+      out(i) = getClosestLinks(coords(i), radius, maxReturns)
+    })
+    out
+  }
+
+  /**
+   * The closest links among the first num_candidates segments of the
+   * candidates (see getClosestLinks). If the heading is not NaN, the
+   * segments with a bearing further than tolerance from the heading are
+   * ignored.
+   */
+  protected[projection] final def closestLinks(c: Coordinate,
+    radius: Double,
+    maxReturns: Int,
+    candidates: Array[Int],
+    num_candidates: Int,
+    heading: Double = Double.NaN,
+    tolerance: Double = 180.0): Projections[L] = {
+    val sel = selection.get
+    sel.reset()
+    val check_heading = !heading.isNaN && tolerance < 180.0
+    var i = 0
+    while (i < num_candidates) {
+      val seg = candidates(i)
+      if (!check_heading || Projector.angleDifference(store.bearing(seg), heading) <= tolerance) {
+        addCandidate(c, radius, seg, sel)
+      }
+      i += 1
+    }
+    IndexSort.sort(sel.found, 0, sel.num_found, sel.link_distances)
+    val n = math.max(0, math.min(maxReturns, sel.num_found))
+    val res = new Array[Spot[L]](n)
+    val distances = new Array[Double](n)
+    for (j <- 0 until n) {
+      val link_id = sel.found(j)
+      val link = store.links(link_id).asInstanceOf[L]
+      res(j) = Spot.from(link, math.min(sel.link_offsets(link_id), link.length), 0)
+      distances(j) = sel.link_distances(link_id)
+    }
+    new Projections(res, distances)
+  }
+
+  private[this] def addCandidate(c: Coordinate, radius: Double, seg: Int, sel: Selection): Unit = {
+    if (store.hasDetail(seg)) {
+      val distance = store.distance(seg, c)
+      if (distance < radius) {
+        sel.add(store.link(seg), distance, store.linkOffset(seg, c))
+      }
+      return
+    }
+    val f = store.frame(seg)
+    val qx = f.x(c)
+    val qy = f.y(c)
+    val k = store.ratio(seg, qx, qy)
+    val distance = store.distance(seg, qx, qy, k)
+    if (distance < radius) {
+      sel.add(store.link(seg), distance, store.cumLength(seg) + k * store.length(seg))
+    }
+  }
+}
+
+object Projector {
+  /**
+   * The default maximum length of the segments of the projectors.
+   */
+  val defaultSearchRadius = 30.0
+
+  /**
+   * The difference between two angles in degrees, between 0 and 180.
+   */
+  def angleDifference(a: Double, b: Double): Double = {
+    val d = math.abs(a - b) % 360.0
+    if (d > 180.0) 360.0 - d else d
   }
 }
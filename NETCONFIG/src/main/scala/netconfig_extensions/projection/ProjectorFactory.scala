@@ -16,6 +16,7 @@
 
 package netconfig_extensions.projection
 import netconfig.Link
+import netconfig.NetconfigException
 
 /**
  * A collection of methods to build projectors.
@@ -39,4 +40,39 @@ import netconfig.Link
 object ProjectorFactory {
   def fromLinks[L <: Link](links: Array[L]): Projector[L] =
     new KDProjector(links)
+
+  /**
+   * A projector using the given spatial index.
+   *
+   * @param radius the typical search radius of the queries (used to size
+   *   the cells of the grid index).
+   * @param index_file if not null, the segments of the links are read from
+   *   this file (see [[netconfig_extensions.projection.ProjectorIndex]]), or
+   *   written to it if it does not exist yet, and so are the arrays of the
+   *   R-tree and of the grid (in files next to it). The links must always be
+   *   given in the same order.
+   * @param simplification if positive, the waypoints of the links are
+   *   simplified for the spatial index, within this distance (meters). The
+   *   distances and the offsets are still computed on the original
+   *   waypoints.
+   */
+  def fromLinks[L <: Link](links: Seq[L],
+    projector_type: ProjectorType.Value,
+    radius: Double = 100.0,
+    index_file: String = null,
+    simplification: Double = 0.0): Projector[L] = {
+    val segments = if (index_file != null) {
+      ProjectorIndex.openOrBuild(links, Projector.defaultSearchRadius, simplification, index_file)
+    } else if (simplification > 0) {
+      SegmentStore.fromLinks(links, Projector.defaultSearchRadius, simplification)
+    } else {
+      null
+    }
+    projector_type match {
+      case ProjectorType.KDTree => new KDProjector(links, segments)
+      case ProjectorType.RTree => new RTreeProjector(links, segments = segments, index_file = index_file)
+      case ProjectorType.Grid => new GridProjector(links, radius, segments, index_file)
+      case _ => throw new NetconfigException(null, "Unknown projector type: " + projector_type)
+    }
+  }
 }
@@ -0,0 +1,374 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel.MapMode
+import core.DistanceMethod
+import core.DistancePolicy
+import core_extensions.MMLogging
+import netconfig.Link
+import netconfig.NetconfigException
+
+/**
+ * Saves the segments of a projector to a binary file, and reads them back,
+ * so that the projectors do not need to cut the links into segments at each
+ * start (the slow part of building a projector).
+ *
+ * Format (big endian):
+ *  - header: magic, version, number of links, number of segments, srid,
+ *    number of detail waypoints (-1 if the links were not simplified),
+ *    distance method of the geometry (ordinal, see [[core.DistancePolicy]])
+ *    (ints), maximum segment length, simplification tolerance (doubles),
+ *    fingerprint of the links (long).
+ *  - the arrays of the segments, one after the other: link (ints), then
+ *    cumulative length, length, start lat, start lon, end lat and end lon
+ *    (doubles).
+ *  - if the links were simplified: detail start and detail end of the
+ *    segments (ints), then lat, lon and offset of the detail waypoints
+ *    (doubles).
+ *
+ * The file is memory-mapped when it is read: the arrays are copied in bulk
+ * from the mapping.
+ *
+ * The segments refer to the links by index, so a file must be read with the
+ * same sequence of links it was saved with. The number of links and a
+ * fingerprint of their lengths are checked when the file is read. The
+ * lengths of the links may come from the network rather than from their
+ * geometry, so the distance method of the geometry, which the offsets and the
+ * frames of the segments depend on, is checked separately.
+ *
+ * The spatial indexes built on the segments (R-tree, grid) can also save
+ * their arrays next to the file (saveArrays, openArrays), in a file with
+ * the name of the index as suffix:
+ *  - header: magic, version (ints), fingerprint of the segments (long),
+ *    parameter of the index (double), number of int, double and long
+ *    arrays (ints).
+ *  - the arrays, each one as its length (int) followed by its elements.
+ */
+object ProjectorIndex extends MMLogging {
+
+  private val MAGIC = 0x50524f4a
+  private val VERSION = 3
+  private val HEADER_BYTES = 7 * 4 + 8 + 8 + 8
+
+  private def geometryMethod: DistanceMethod = DistancePolicy.get(DistancePolicy.Site.GEOMETRY)
+
+  /**
+   * A fingerprint of the sequence of links (based on their lengths).
+   */
+  private def fingerprint(links: Seq[Link]): Long = {
+    var h = 17L
+    for (l <- links) {
+      h = 31 * h + math.round(l.length.toDouble * 1000)
+    }
+    h
+  }
+
+  /**
+   * Writes a file through a temporary file in the same directory, renamed
+   * when complete: a crash or a concurrent run never leaves a partial file.
+   */
+  private def writeAtomically(fname: String)(write: DataOutputStream => Unit): Unit = {
+    val file = (new File(fname)).getAbsoluteFile
+    val tmp = File.createTempFile("projector-index", ".tmp", file.getParentFile)
+    try {
+      val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))
+      try {
+        write(out)
+      } finally {
+        out.close()
+      }
+      // The rename does not replace an existing file on all platforms.
+      if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+        throw new IOException("Could not rename %s to %s" format (tmp, file))
+      }
+    } finally {
+      tmp.delete()
+    }
+  }
+
+  def save(store: SegmentStore, max_length: Double, fname: String): Unit = {
+    val has_detail = store.detailStart != null
+    writeAtomically(fname) { out =>
+      out.writeInt(MAGIC)
+      out.writeInt(VERSION)
+      out.writeInt(store.links.length)
+      out.writeInt(store.size)
+      out.writeInt(store.srid)
+      out.writeInt(if (has_detail) store.detailLat.length else -1)
+      out.writeInt(geometryMethod.ordinal)
+      out.writeDouble(max_length)
+      out.writeDouble(store.tolerance)
+      out.writeLong(fingerprint(store.links))
+      store.link.foreach(out.writeInt _)
+      for (xs <- doubleArrays(store)) {
+        xs.foreach(out.writeDouble _)
+      }
+      if (has_detail) {
+        store.detailStart.foreach(out.writeInt _)
+        store.detailEnd.foreach(out.writeInt _)
+        for (xs <- Seq(store.detailLat, store.detailLon, store.detailCum)) {
+          xs.foreach(out.writeDouble _)
+        }
+      }
+    }
+    logInfo("Saved %d segments to %s" format (store.size, fname))
+  }
+
+  private def doubleArrays(store: SegmentStore): Seq[Array[Double]] =
+    Seq(store.cumLength, store.length, store.startLat, store.startLon, store.endLat, store.endLon)
+
+  /**
+   * Reads the segments of a sequence of links saved with save().
+   *
+   * @throws NetconfigException if the file is not a projector index built
+   *   with the same links, maximum segment length and tolerance, or if it
+   *   is truncated.
+   */
+  def open(links: Seq[Link], max_length: Double, tolerance: Double, fname: String): SegmentStore = {
+    val raf = new RandomAccessFile(new File(fname), "r")
+    try {
+      if (raf.readInt() != MAGIC) {
+        throw new NetconfigException(null, "Not a projector index: " + fname)
+      }
+      val version = raf.readInt()
+      if (version != VERSION) {
+        throw new NetconfigException(null, "Unsupported projector index version %d in %s" format (version, fname))
+      }
+      val num_links = raf.readInt()
+      val num_segments = raf.readInt()
+      val srid = raf.readInt()
+      val num_details = raf.readInt()
+      val file_method = raf.readInt()
+      val file_max_length = raf.readDouble()
+      val file_tolerance = raf.readDouble()
+      val file_fingerprint = raf.readLong()
+      if (num_links != links.size || file_fingerprint != fingerprint(links)) {
+        throw new NetconfigException(null, "The projector index %s was built for other links" format fname)
+      }
+      if (file_method != geometryMethod.ordinal) {
+        throw new NetconfigException(null, "The projector index %s was built with another distance method than %s" format (fname, geometryMethod))
+      }
+      if (file_max_length != max_length) {
+        throw new NetconfigException(null, "The projector index %s was built with segments of %f meters, not %f" format (fname, file_max_length, max_length))
+      }
+      if (file_tolerance != tolerance) {
+        throw new NetconfigException(null, "The projector index %s was built with a tolerance of %f meters, not %f" format (fname, file_tolerance, tolerance))
+      }
+      val expected_bytes = HEADER_BYTES + 52L * num_segments +
+        (if (num_details >= 0) 8L * num_segments + 24L * num_details else 0L)
+      if (raf.length != expected_bytes) {
+        throw new NetconfigException(null, "The projector index %s has %d bytes instead of %d" format (fname, raf.length, expected_bytes))
+      }
+      val channel = raf.getChannel
+      var pos = HEADER_BYTES.toLong
+      def readInts(n: Int): Array[Int] = {
+        val xs = new Array[Int](n)
+        channel.map(MapMode.READ_ONLY, pos, 4L * n).asIntBuffer().get(xs)
+        pos += 4L * n
+        xs
+      }
+      def readDoubles(n: Int): Array[Double] = {
+        val xs = new Array[Double](n)
+        channel.map(MapMode.READ_ONLY, pos, 8L * n).asDoubleBuffer().get(xs)
+        pos += 8L * n
+        xs
+      }
+      val link = readInts(num_segments)
+      val doubles = Array.fill(6)(readDoubles(num_segments))
+      logInfo("Opened projector index %s: %d links, %d segments" format (fname, num_links, num_segments))
+      if (num_details >= 0) {
+        val detail_start = readInts(num_segments)
+        val detail_end = readInts(num_segments)
+        val details = Array.fill(3)(readDoubles(num_details))
+        new SegmentStore(links.toArray, srid, link, doubles(0), doubles(1), doubles(2), doubles(3), doubles(4), doubles(5),
+          tolerance, detail_start, detail_end, details(0), details(1), details(2))
+      } else {
+        new SegmentStore(links.toArray, srid, link, doubles(0), doubles(1), doubles(2), doubles(3), doubles(4), doubles(5))
+      }
+    } finally {
+      // The mappings remain valid after the file is closed.
+      raf.close()
+    }
+  }
+
+  /**
+   * Reads the segments of the links from the file if it exists and matches
+   * the links, otherwise computes them and writes the file (an unreadable
+   * file is rebuilt too).
+   */
+  def openOrBuild(links: Seq[Link], max_length: Double, tolerance: Double, fname: String): SegmentStore = {
+    if ((new File(fname)).exists()) {
+      try {
+        return open(links, max_length, tolerance, fname)
+      } catch {
+        case e: NetconfigException => logWarning("Rebuilding the projector index: " + e.getMessage)
+        case e: IOException => logWarning("Rebuilding the projector index: " + e)
+      }
+    }
+    val store = SegmentStore.fromLinks(links, max_length, tolerance)
+    save(store, max_length, fname)
+    store
+  }
+
+  private val ARRAYS_MAGIC = 0x50524f41
+  private val ARRAYS_VERSION = 1
+  private val ARRAYS_HEADER_BYTES = 2 * 4 + 8 + 8 + 3 * 4
+
+  /**
+   * The arrays of a spatial index.
+   */
+  final class IndexArrays(
+    val ints: Seq[Array[Int]],
+    val doubles: Seq[Array[Double]],
+    val longs: Seq[Array[Long]])
+
+  /**
+   * A fingerprint of the segments (their links, their end points, and the
+   * distance method of their frames).
+   */
+  private def fingerprint(store: SegmentStore): Long = {
+    var h = fingerprint(store.links)
+    h = 31 * h + geometryMethod.ordinal
+    h = 31 * h + store.size
+    h = 31 * h + java.lang.Double.doubleToLongBits(store.tolerance)
+    for (xs <- Seq(store.startLat, store.startLon, store.endLat, store.endLon)) {
+      h = 31 * h + java.util.Arrays.hashCode(xs)
+    }
+    h
+  }
+
+  private def arraysFile(fname: String, kind: String): String = fname + "." + kind
+
+  /**
+   * Saves the arrays of a spatial index built on these segments, next to
+   * the file of the segments.
+   *
+   * @param kind the name of the index (suffix of the file)
+   * @param param the parameter the index was built with (node capacity,
+   *   cell size)
+   */
+  def saveArrays(fname: String, kind: String, store: SegmentStore, param: Double, arrays: IndexArrays): Unit = {
+    val arrays_fname = arraysFile(fname, kind)
+    writeAtomically(arrays_fname) { out =>
+      out.writeInt(ARRAYS_MAGIC)
+      out.writeInt(ARRAYS_VERSION)
+      out.writeLong(fingerprint(store))
+      out.writeDouble(param)
+      out.writeInt(arrays.ints.length)
+      out.writeInt(arrays.doubles.length)
+      out.writeInt(arrays.longs.length)
+      for (xs <- arrays.ints) {
+        out.writeInt(xs.length)
+        xs.foreach(out.writeInt _)
+      }
+      for (xs <- arrays.doubles) {
+        out.writeInt(xs.length)
+        xs.foreach(out.writeDouble _)
+      }
+      for (xs <- arrays.longs) {
+        out.writeInt(xs.length)
+        xs.foreach(out.writeLong _)
+      }
+    }
+    logInfo("Saved the %s index to %s" format (kind, arrays_fname))
+  }
+
+  /**
+   * Reads the arrays of a spatial index saved with saveArrays().
+   *
+   * @return None if there is no file, or if it was not built on the same
+   *   segments with the same parameter, or if it cannot be read.
+   */
+  def openArrays(fname: String, kind: String, store: SegmentStore, param: Double): Option[IndexArrays] = {
+    val arrays_fname = arraysFile(fname, kind)
+    if (!(new File(arrays_fname)).exists()) {
+      return None
+    }
+    try {
+      Some(readArrays(arrays_fname, store, param))
+    } catch {
+      case e: NetconfigException => {
+        logWarning("Rebuilding the %s index: %s" format (kind, e.getMessage))
+        None
+      }
+      case e: IOException => {
+        logWarning("Rebuilding the %s index: %s" format (kind, e))
+        None
+      }
+    }
+  }
+
+  private def readArrays(fname: String, store: SegmentStore, param: Double): IndexArrays = {
+    val raf = new RandomAccessFile(new File(fname), "r")
+    try {
+      if (raf.readInt() != ARRAYS_MAGIC || raf.readInt() != ARRAYS_VERSION) {
+        throw new NetconfigException(null, "Not a spatial index file of this version: " + fname)
+      }
+      if (raf.readLong() != fingerprint(store) || raf.readDouble() != param) {
+        throw new NetconfigException(null, "The spatial index %s was built for other segments" format fname)
+      }
+      val num_ints = raf.readInt()
+      val num_doubles = raf.readInt()
+      val num_longs = raf.readInt()
+      val channel = raf.getChannel
+      var pos = ARRAYS_HEADER_BYTES.toLong
+      // Checks that the file holds an array of n elements of this size.
+      def readLength(element_bytes: Int): Int = {
+        if (pos + 4 > raf.length) {
+          throw new NetconfigException(null, "The spatial index %s is truncated" format fname)
+        }
+        val n = channel.map(MapMode.READ_ONLY, pos, 4).getInt
+        pos += 4
+        if (n < 0 || pos + element_bytes.toLong * n > raf.length) {
+          throw new NetconfigException(null, "The spatial index %s is truncated" format fname)
+        }
+        n
+      }
+      val ints = Seq.fill(num_ints) {
+        val xs = new Array[Int](readLength(4))
+        channel.map(MapMode.READ_ONLY, pos, 4L * xs.length).asIntBuffer().get(xs)
+        pos += 4L * xs.length
+        xs
+      }
+      val doubles = Seq.fill(num_doubles) {
+        val xs = new Array[Double](readLength(8))
+        channel.map(MapMode.READ_ONLY, pos, 8L * xs.length).asDoubleBuffer().get(xs)
+        pos += 8L * xs.length
+        xs
+      }
+      val longs = Seq.fill(num_longs) {
+        val xs = new Array[Long](readLength(8))
+        channel.map(MapMode.READ_ONLY, pos, 8L * xs.length).asLongBuffer().get(xs)
+        pos += 8L * xs.length
+        xs
+      }
+      if (pos != raf.length) {
+        throw new NetconfigException(null, "The spatial index %s has %d bytes instead of %d" format (fname, raf.length, pos))
+      }
+      new IndexArrays(ints, doubles, longs)
+    } finally {
+      raf.close()
+    }
+  }
+}
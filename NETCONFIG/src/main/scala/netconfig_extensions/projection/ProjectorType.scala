@@ -0,0 +1,42 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+/**
+ * The spatial indexes available for the projection of the points on the
+ * links.
+ */
+object ProjectorType extends Enumeration {
+  type ProjectorType = Value
+
+  /**
+   * KD-tree (the historical default).
+   */
+  val KDTree = Value("KDTree")
+
+  /**
+   * Packed R-tree, bulk-loaded with the Sort-Tile-Recursive algorithm, with a
+   * best-first search of the closest links.
+   */
+  val RTree = Value("RTree")
+
+  /**
+   * Uniform grid of cells of about the size of the search radius, stored as
+   * a spatial hash. Best when the search radius is roughly constant.
+   */
+  val Grid = Value("Grid")
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import collection.mutable.ArrayBuffer
+import core.Coordinate
+import netconfig.{ Link, Spot }
+
+/**
+ * A projector that uses a packed R-tree, bulk-loaded with the
+ * Sort-Tile-Recursive (STR) algorithm.
+ *
+ * The tree is stored in primitive arrays: the segment ids are ordered so that
+ * each leaf covers a contiguous range of segments, and each inner node a
+ * contiguous range of nodes of the level below. The build sorts the segments
+ * once per level (O(n log n)).
+ *
+ * The closest links are found with a best-first search: the nodes and the
+ * segments are visited by increasing distance to the point, so the search
+ * stops as soon as maxReturns links are found. The nodes are compared in a
+ * single planar frame for the whole network, and the segments in the frame
+ * of their tile (see [[netconfig_extensions.projection.PlanarFrame]]); the
+ * distances to the nodes are scaled down by the largest difference of scale
+ * between the two, over the extent of the network (see
+ * SegmentStore.scaleRatios). Apart from the returned spots, the queries do
+ * not allocate.
+ *
+ * If index_file is set (the file of the segments, see
+ * [[netconfig_extensions.projection.ProjectorIndex]]), the arrays of the
+ * tree are read from a file next to it, or saved there once built.
+ *
+ * This class is thread-safe.
+ */
+class RTreeProjector[L <: Link](val links: Seq[L], node_capacity: Int = 16, segments: SegmentStore = null,
+  index_file: String = null)
+  extends Projector[L] {
+
+  override protected def prebuiltSegments = segments
+
+  private[this] val num_segments = store.size
+
+  // The ids of the segments, in the order of the leaves.
+  private[this] var leaf_segs: Array[Int] = null
+
+  // The frame of the tree.
+  private[this] val frame = if (num_segments > 0) {
+    PlanarFrame.centeredAt(store.start(0))
+  } else {
+    null
+  }
+
+  // The distances in the frames of the segments are at least this fraction
+  // of the distances in the frame of the tree.
+  private[this] val min_scale = if (num_segments > 0) {
+    store.scaleRatios(frame)._1
+  } else {
+    1.0
+  }
+
+  // The nodes: bounding boxes and ranges of children (segments for the
+  // leaves, which are the first num_leaves nodes).
+  private[this] var node_min_x: Array[Double] = null
+  private[this] var node_min_y: Array[Double] = null
+  private[this] var node_max_x: Array[Double] = null
+  private[this] var node_max_y: Array[Double] = null
+  private[this] var node_start: Array[Int] = null
+  private[this] var node_end: Array[Int] = null
+  private[this] var num_leaves = 0
+  private[this] var root = -1
+
+  build()
+
+  /**
+   * Orders the elements with the STR algorithm: in vertical slices, and by
+   * y within each slice. Each group of node_capacity consecutive elements
+   * then makes a node.
+   */
+  private[this] def strOrder(cx: Array[Double], cy: Array[Double]): Array[Int] = {
+    val n = cx.length
+    val order = Array.range(0, n)
+    IndexSort.sort(order, 0, n, cx)
+    val num_groups = (n + node_capacity - 1) / node_capacity
+    val num_slices = math.ceil(math.sqrt(num_groups)).toInt
+    val slice_size = num_slices * node_capacity
+    for (start <- 0 until n by slice_size) {
+      IndexSort.sort(order, start, math.min(n, start + slice_size), cy)
+    }
+    order
+  }
+
+  private[this] def permute[T: ClassManifest](xs: Array[T], order: Array[Int]): Array[T] = {
+    order.map(i => xs(i))
+  }
+
+  private[this] def build(): Unit = {
+    if (num_segments == 0) {
+      return
+    }
+    val saved = if (index_file != null) {
+      ProjectorIndex.openArrays(index_file, "rtree", store, node_capacity)
+    } else {
+      None
+    }
+    saved match {
+      case Some(arrays) => {
+        leaf_segs = arrays.ints(0)
+        node_start = arrays.ints(1)
+        node_end = arrays.ints(2)
+        num_leaves = arrays.ints(3)(0)
+        node_min_x = arrays.doubles(0)
+        node_min_y = arrays.doubles(1)
+        node_max_x = arrays.doubles(2)
+        node_max_y = arrays.doubles(3)
+        root = node_min_x.length - 1
+        logInfo("R-tree read from the index: %d segments, %d nodes" format (num_segments, node_min_x.length))
+      }
+      case None => {
+        buildTree()
+        if (index_file != null) {
+          ProjectorIndex.saveArrays(index_file, "rtree", store, node_capacity,
+            new ProjectorIndex.IndexArrays(
+              Seq(leaf_segs, node_start, node_end, Array(num_leaves)),
+              Seq(node_min_x, node_min_y, node_max_x, node_max_y),
+              Seq.empty))
+        }
+      }
+    }
+  }
+
+  private[this] def buildTree(): Unit = {
+    // Segments in the frame of the tree.
+    val min_x = new Array[Double](num_segments)
+    val min_y = new Array[Double](num_segments)
+    val max_x = new Array[Double](num_segments)
+    val max_y = new Array[Double](num_segments)
+    val cx = new Array[Double](num_segments)
+    val cy = new Array[Double](num_segments)
+    for (i <- 0 until num_segments) {
+      val (x0, y0) = (frame.x(store.startLat(i)), frame.y(store.startLon(i)))
+      val (x1, y1) = (frame.x(store.endLat(i)), frame.y(store.endLon(i)))
+      min_x(i) = math.min(x0, x1)
+      min_y(i) = math.min(y0, y1)
+      max_x(i) = math.max(x0, x1)
+      max_y(i) = math.max(y0, y1)
+      cx(i) = 0.5 * (x0 + x1)
+      cy(i) = 0.5 * (y0 + y1)
+    }
+    // Order the segments.
+    val order = strOrder(cx, cy)
+    leaf_segs = order
+    // The levels of the tree, from the leaves to the root.
+    // Each level: (min_x, min_y, max_x, max_y, start, end)
+    val levels = new ArrayBuffer[(Array[Double], Array[Double], Array[Double], Array[Double], Array[Int], Array[Int])]
+    var (cur_min_x, cur_min_y, cur_max_x, cur_max_y) =
+      (permute(min_x, order), permute(min_y, order), permute(max_x, order), permute(max_y, order))
+    var is_leaf_level = true
+    var done = false
+    while (!done) {
+      // Group the current elements by node_capacity.
+      val n = cur_min_x.length
+      val num_nodes = (n + node_capacity - 1) / node_capacity
+      val l_min_x = new Array[Double](num_nodes)
+      val l_min_y = new Array[Double](num_nodes)
+      val l_max_x = new Array[Double](num_nodes)
+      val l_max_y = new Array[Double](num_nodes)
+      val l_start = new Array[Int](num_nodes)
+      val l_end = new Array[Int](num_nodes)
+      for (j <- 0 until num_nodes) {
+        val start = j * node_capacity
+        val end = math.min(n, start + node_capacity)
+        l_start(j) = start
+        l_end(j) = end
+        l_min_x(j) = Double.MaxValue
+        l_min_y(j) = Double.MaxValue
+        l_max_x(j) = -Double.MaxValue
+        l_max_y(j) = -Double.MaxValue
+        for (i <- start until end) {
+          l_min_x(j) = math.min(l_min_x(j), cur_min_x(i))
+          l_min_y(j) = math.min(l_min_y(j), cur_min_y(i))
+          l_max_x(j) = math.max(l_max_x(j), cur_max_x(i))
+          l_max_y(j) = math.max(l_max_y(j), cur_max_y(i))
+        }
+      }
+      if (is_leaf_level) {
+        num_leaves = num_nodes
+        is_leaf_level = false
+      }
+      if (num_nodes == 1) {
+        levels += ((l_min_x, l_min_y, l_max_x, l_max_y, l_start, l_end))
+        done = true
+      } else {
+        // Reorder the nodes of this level for the next level (their children
+        // ranges are not affected).
+        val ncx = Array.tabulate(num_nodes)(j => 0.5 * (l_min_x(j) + l_max_x(j)))
+        val ncy = Array.tabulate(num_nodes)(j => 0.5 * (l_min_y(j) + l_max_y(j)))
+        val node_order = strOrder(ncx, ncy)
+        levels += ((permute(l_min_x, node_order), permute(l_min_y, node_order),
+          permute(l_max_x, node_order), permute(l_max_y, node_order),
+          permute(l_start, node_order), permute(l_end, node_order)))
+        cur_min_x = levels.last._1
+        cur_min_y = levels.last._2
+        cur_max_x = levels.last._3
+        cur_max_y = levels.last._4
+      }
+    }
+    // Concatenate the levels. The children of a node of level l > 0 are nodes
+    // of level l - 1.
+    val bases = levels.scanLeft(0)(_ + _._1.length)
+    val total = bases.last
+    node_min_x = levels.flatMap(_._1).toArray
+    node_min_y = levels.flatMap(_._2).toArray
+    node_max_x = levels.flatMap(_._3).toArray
+    node_max_y = levels.flatMap(_._4).toArray
+    node_start = new Array[Int](total)
+    node_end = new Array[Int](total)
+    for ((level, l) <- levels.zipWithIndex) {
+      val child_base = if (l == 0) 0 else bases(l - 1)
+      for (j <- 0 until level._5.length) {
+        node_start(bases(l) + j) = child_base + level._5(j)
+        node_end(bases(l) + j) = child_base + level._6(j)
+      }
+    }
+    root = total - 1
+    logInfo("R-tree built: %d segments, %d nodes, %d levels" format (num_segments, total, levels.size))
+  }
+
+  /**
+   * Lower bound of the distance from the point to the box of the node.
+   */
+  private[this] def nodeDistance(node: Int, px: Double, py: Double): Double = {
+    val dx = math.max(0.0, math.max(node_min_x(node) - px, px - node_max_x(node)))
+    val dy = math.max(0.0, math.max(node_min_y(node) - py, py - node_max_y(node)))
+    val d = math.sqrt(dx * dx + dy * dy)
+    // Accounts for the difference between the frame of the tree and the
+    // frames of the segments, and for the simplification of the segments.
+    math.max(0.0, min_scale * d - store.tolerance)
+  }
+
+  private[this] class QueryState {
+    val heap = new MinHeap
+    // The links already returned by the current query have the current stamp.
+    val link_stamps = new Array[Int](store.links.length)
+    var stamp = 0
+
+    def nextStamp(): Int = {
+      if (stamp == Int.MaxValue) {
+        java.util.Arrays.fill(link_stamps, 0)
+        stamp = 0
+      }
+      stamp += 1
+      stamp
+    }
+  }
+
+  private[this] val query_state = new ThreadLocal[QueryState] {
+    override def initialValue(): QueryState = new QueryState
+  }
+
+  /**
+   * Pushes the children of a node in the heap.
+   */
+  private[this] def expand(node: Int, c: Coordinate, px: Double, py: Double, radius: Double, heap: MinHeap): Unit = {
+    var i = node_start(node)
+    val end = node_end(node)
+    if (node < num_leaves) {
+      while (i < end) {
+        val seg = leaf_segs(i)
+        val d = store.distance(seg, c)
+        if (d < radius) {
+          // Segments are encoded as negative values.
+          heap.push(d, -(seg + 1))
+        }
+        i += 1
+      }
+    } else {
+      while (i < end) {
+        val d = nodeDistance(i, px, py)
+        if (d < radius) {
+          heap.push(d, i)
+        }
+        i += 1
+      }
+    }
+  }
+
+  override def project(c: Coordinate,
+    radius: Double,
+    maxReturns: Int): Projections[L] = {
+    val res = new ArrayBuffer[Spot[L]]
+    val distances = new ArrayBuffer[Double]
+    if (root < 0 || maxReturns <= 0) {
+      return new Projections(res.toArray, distances.toArray)
+    }
+    val state = query_state.get
+    val heap = state.heap
+    val stamp = state.nextStamp()
+    heap.clear()
+    val px = frame.x(c)
+    val py = frame.y(c)
+    val root_distance = nodeDistance(root, px, py)
+    if (root_distance < radius) {
+      heap.push(root_distance, root)
+    }
+    while (!heap.isEmpty && res.length < maxReturns) {
+      val d = heap.minKey
+      val v = heap.pop()
+      if (v < 0) {
+        // The closest remaining element is a segment: its link is at this
+        // distance, unless it was already found closer.
+        val seg = -v - 1
+        val link_id = store.link(seg)
+        if (state.link_stamps(link_id) != stamp) {
+          state.link_stamps(link_id) = stamp
+          val link = store.links(link_id).asInstanceOf[L]
+          val offset = math.min(store.linkOffset(seg, c), link.length)
+          res += Spot.from(link, offset, 0)
+          distances += d
+        }
+      } else {
+        expand(v, c, px, py, radius, heap)
+      }
+    }
+    heap.clear()
+    new Projections(res.toArray, distances.toArray)
+  }
+
+  override def getCandidateSegmentIdsWithinRadius(c: Coordinate, radius: Double): Array[Int] = {
+    val res = new ArrayBuffer[Int]
+    if (root < 0) {
+      return res.toArray
+    }
+    val heap = query_state.get.heap
+    heap.clear()
+    val px = frame.x(c)
+    val py = frame.y(c)
+    heap.push(0.0, root)
+    // The heap is only used as a stack here: all the elements are visited.
+    while (!heap.isEmpty) {
+      val v = heap.pop()
+      if (v < 0) {
+        res += -v - 1
+      } else {
+        expand(v, c, px, py, radius, heap)
+      }
+    }
+    res.toArray
+  }
+}
@@ -23,18 +23,28 @@ import core_extensions.MMLogging
 /**
  * A segment in cartesian coordinates.
  *
- * It approximates the same segment in geodesic coordinates.
+ * It approximates the same segment in geodesic coordinates. The end points are
+ * stored in the planar frame of the tile of the start point (see
+ * [[netconfig_extensions.projection.PlanarFrame]]), so that the projections
+ * on the segment do not compute any geodesic distance.
  */
 final class Segment(val start: Coordinate, val end: Coordinate)
   extends MMLogging {
 
   val length = CoordinateGeometry.distance(start, end)
 
-  lazy val (dlat, dlon) = CoordinateGeometry.localGeometry(start)
+  val frame = PlanarFrame.forCoordinate(start)
 
-  private val (dlat1, dlon1) = CoordinateGeometry.difference(start, end)
-  private val (x1, y1) = (dlat1 * dlat, dlon1 * dlon)
-  private val local_length_square = x1 * x1 + y1 * y1
+  def dlat = frame.dlat
+
+  def dlon = frame.dlon
+
+  // The end points in the planar frame.
+  private[this] val x0 = frame.x(start)
+  private[this] val y0 = frame.y(start)
+  private[this] val x1 = frame.x(end) - x0
+  private[this] val y1 = frame.y(end) - y0
+  private[this] val local_length_square = x1 * x1 + y1 * y1
 
   override def hashCode = (start, end).hashCode
 
@@ -57,26 +67,51 @@ final class Segment(val start: Coordinate, val end: Coordinate)
   }
 
   /**
-   * @return (distance,offset on link,created point on link)
+   * The position of the projection of a point on the line of the segment
+   * (0 at the start, 1 at the end), clamped to the segment.
    */
-  def closestPoint(p: Coordinate, precision: Double): (Double, Double, Coordinate) = {
-
-    val (dlat2, dlon2) = CoordinateGeometry.difference(start, p)
-    val (x2, y2) = (dlat2 * dlat, dlon2 * dlon)
-
+  private[this] def ratio(p: Coordinate): Double = {
+    if (local_length_square == 0) {
+      return 0.0
+    }
+    val x2 = frame.x(p) - x0
+    val y2 = frame.y(p) - y0
     // Do not forget the parens...
     val k = (x1 * x2 + y1 * y2) / local_length_square
+    math.max(0.0, math.min(1.0, k))
+  }
 
-    if (k <= 0) {
-      return (CoordinateGeometry.distance(start, p), 0.0, start)
-    }
-    if (k >= 1) {
-      return (CoordinateGeometry.distance(end, p), length, end)
+  /**
+   * The distance (meters, in the planar frame) between the point and the
+   * closest point on the segment.
+   */
+  private[this] def distance(p: Coordinate, k: Double): Double = {
+    val dx = frame.x(p) - x0 - k * x1
+    val dy = frame.y(p) - y0 - k * y1
+    math.sqrt(dx * dx + dy * dy)
+  }
+
+  /**
+   * @return (distance,offset on segment) of the closest point on the segment.
+   */
+  def closestDistanceAndOffset(p: Coordinate): (Double, Double) = {
+    val k = ratio(p)
+    (distance(p, k), k * length)
+  }
+
+  /**
+   * @return (distance,offset on link,created point on link)
+   */
+  def closestPoint(p: Coordinate, precision: Double): (Double, Double, Coordinate) = {
+    val k = ratio(p)
+    val closest_p = if (k <= 0) {
+      start
+    } else if (k >= 1) {
+      end
+    } else {
+      CoordinateGeometry.convexCombination(start, end, k)
     }
-    val closest_p = CoordinateGeometry.convexCombination(start, end, k)
-    val d = CoordinateGeometry.distance(closest_p, p)
-    return (d, k * length, closest_p)
+    (distance(p, k), k * length, closest_p)
   }
 
 }
-
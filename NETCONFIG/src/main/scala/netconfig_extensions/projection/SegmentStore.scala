@@ -0,0 +1,341 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package netconfig_extensions.projection
+
+import collection.mutable.ArrayBuffer
+import core.Coordinate
+import core_extensions.CoordinateGeometry
+import core_extensions.MMLogging
+import netconfig.Link
+
+/**
+ * The segments of the links of a projector, stored in parallel primitive
+ * arrays.
+ *
+ * Each segment has a dense id (0 until size) that indexes all the arrays, so
+ * the spatial indexes can refer to the segments by id and the projection loop
+ * never hashes or allocates. For each segment, the store keeps the index of
+ * its link, its offset on the link, its end points, and its end points in the
+ * planar frame of its tile (see
+ * [[netconfig_extensions.projection.PlanarFrame]]).
+ *
+ * The segments of a link have consecutive ids, in the order of the link.
+ *
+ * If the links were simplified (tolerance > 0), a segment may be the chord of
+ * several waypoints of the link, within tolerance meters of all of them. Such
+ * a segment keeps the range detailStart(i) to detailEnd(i) (inclusive) of the
+ * original waypoints it replaces (detail arrays, with their offsets on the
+ * link), so the distances and the offsets are still computed on the original
+ * geometry. The spatial indexes, which only see the chords, must then search
+ * tolerance meters further.
+ *
+ * A store can be saved to a file and read back with
+ * [[netconfig_extensions.projection.ProjectorIndex]].
+ */
+final class SegmentStore(
+  val links: Array[Link],
+  val srid: Int,
+  val link: Array[Int],
+  val cumLength: Array[Double],
+  val length: Array[Double],
+  val startLat: Array[Double],
+  val startLon: Array[Double],
+  val endLat: Array[Double],
+  val endLon: Array[Double],
+  val tolerance: Double = 0.0,
+  val detailStart: Array[Int] = null,
+  val detailEnd: Array[Int] = null,
+  val detailLat: Array[Double] = null,
+  val detailLon: Array[Double] = null,
+  val detailCum: Array[Double] = null) {
+
+  val size = link.length
+
+  val frame: Array[PlanarFrame] = Array.tabulate(size)(i => PlanarFrame.forCoordinate(start(i)))
+
+  // In the frame of each segment: start point and direction.
+  val x0: Array[Double] = Array.tabulate(size)(i => frame(i).x(startLat(i)))
+  val y0: Array[Double] = Array.tabulate(size)(i => frame(i).y(startLon(i)))
+  val dx: Array[Double] = Array.tabulate(size)(i => frame(i).x(endLat(i)) - x0(i))
+  val dy: Array[Double] = Array.tabulate(size)(i => frame(i).y(endLon(i)) - y0(i))
+
+  // The bearing of each segment, in degrees clockwise from the north (the x
+  // axis of the frames), between 0 and 360.
+  val bearing: Array[Float] = Array.tabulate(size)(i => {
+    val b = math.toDegrees(math.atan2(dy(i), dx(i)))
+    (if (b < 0) b + 360.0 else b).toFloat
+  })
+
+  /**
+   * The smallest and the largest ratio between the scales of the frames of
+   * the segments and the scales of another frame (for both axes).
+   *
+   * The frames only differ by their origin and their scales, so the distance
+   * between two points in the frame of a segment is between these ratios
+   * times their distance in the other frame. A structure that uses a single
+   * frame over the whole network (whose scale drifts with the latitude)
+   * needs this slack to bound the distances to the segments.
+   */
+  def scaleRatios(f: PlanarFrame): (Double, Double) = {
+    var min_ratio = 1.0
+    var max_ratio = 1.0
+    var previous: PlanarFrame = null
+    for (i <- 0 until size if !(frame(i) eq previous)) {
+      previous = frame(i)
+      val rx = previous.dlat / f.dlat
+      val ry = previous.dlon / f.dlon
+      min_ratio = math.min(min_ratio, math.min(rx, ry))
+      max_ratio = math.max(max_ratio, math.max(rx, ry))
+    }
+    (min_ratio, max_ratio)
+  }
+
+  def start(i: Int): Coordinate = new Coordinate(srid, startLat(i), startLon(i))
+
+  def end(i: Int): Coordinate = new Coordinate(srid, endLat(i), endLon(i))
+
+  /**
+   * The position of the projection of the point (in the frame of the
+   * segment) on the segment, between 0 (start) and 1 (end).
+   */
+  def ratio(i: Int, qx: Double, qy: Double): Double = {
+    val ux = dx(i)
+    val uy = dy(i)
+    val l2 = ux * ux + uy * uy
+    if (l2 == 0) {
+      0.0
+    } else {
+      val k = ((qx - x0(i)) * ux + (qy - y0(i)) * uy) / l2
+      math.max(0.0, math.min(1.0, k))
+    }
+  }
+
+  /**
+   * The distance between the point (in the frame of the segment) and the
+   * point of the segment at the given ratio.
+   */
+  def distance(i: Int, qx: Double, qy: Double, k: Double): Double = {
+    val ex = qx - x0(i) - k * dx(i)
+    val ey = qy - y0(i) - k * dy(i)
+    math.sqrt(ex * ex + ey * ey)
+  }
+
+  /**
+   * True if the segment is the chord of several waypoints of the link.
+   */
+  def hasDetail(i: Int): Boolean = detailStart != null && detailStart(i) >= 0
+
+  /**
+   * The distance (meters, in the planar frame) between the point and the
+   * segment (or the original waypoints of the segment).
+   */
+  def distance(i: Int, c: Coordinate): Double = {
+    val f = frame(i)
+    val qx = f.x(c)
+    val qy = f.y(c)
+    if (hasDetail(i)) {
+      detailClosest(i, qx, qy, false)
+    } else {
+      distance(i, qx, qy, ratio(i, qx, qy))
+    }
+  }
+
+  /**
+   * The offset on the link of the closest point of the segment (or of the
+   * original waypoints of the segment).
+   */
+  def linkOffset(i: Int, c: Coordinate): Double = {
+    val f = frame(i)
+    val qx = f.x(c)
+    val qy = f.y(c)
+    if (hasDetail(i)) {
+      detailClosest(i, qx, qy, true)
+    } else {
+      cumLength(i) + ratio(i, qx, qy) * length(i)
+    }
+  }
+
+  /**
+   * The distance to the closest point of the original waypoints of the
+   * segment, or its offset on the link.
+   */
+  private[this] def detailClosest(i: Int, qx: Double, qy: Double, return_offset: Boolean): Double = {
+    val f = frame(i)
+    var best_distance = Double.MaxValue
+    var best_offset = 0.0
+    var ax = f.x(detailLat(detailStart(i)))
+    var ay = f.y(detailLon(detailStart(i)))
+    var v = detailStart(i)
+    while (v < detailEnd(i)) {
+      val bx = f.x(detailLat(v + 1))
+      val by = f.y(detailLon(v + 1))
+      val ux = bx - ax
+      val uy = by - ay
+      val l2 = ux * ux + uy * uy
+      val k = if (l2 == 0) 0.0 else math.max(0.0, math.min(1.0, ((qx - ax) * ux + (qy - ay) * uy) / l2))
+      val ex = qx - ax - k * ux
+      val ey = qy - ay - k * uy
+      val d = math.sqrt(ex * ex + ey * ey)
+      if (d < best_distance) {
+        best_distance = d
+        best_offset = detailCum(v) + k * (detailCum(v + 1) - detailCum(v))
+      }
+      ax = bx
+      ay = by
+      v += 1
+    }
+    if (return_offset) best_offset else best_distance
+  }
+}
+
+object SegmentStore extends MMLogging {
+
+  /**
+   * Decomposes all the GeoMultLine objects into sequences of segments no
+   * longer than max_length.
+   *
+   * @param tolerance if positive, the waypoints of the links are first
+   *   simplified with the Douglas-Peucker algorithm: the simplified lines
+   *   are within tolerance meters of the original waypoints.
+   */
+  def fromLinks(links: Seq[Link], max_length: Double, tolerance: Double = 0.0): SegmentStore = {
+    val link_array = links.toArray
+    val link = new ArrayBuffer[Int]
+    val cum_length = new ArrayBuffer[Double]
+    val length = new ArrayBuffer[Double]
+    val start_lat = new ArrayBuffer[Double]
+    val start_lon = new ArrayBuffer[Double]
+    val end_lat = new ArrayBuffer[Double]
+    val end_lon = new ArrayBuffer[Double]
+    val detail_start = new ArrayBuffer[Int]
+    val detail_end = new ArrayBuffer[Int]
+    val detail_lat = new ArrayBuffer[Double]
+    val detail_lon = new ArrayBuffer[Double]
+    val detail_cum = new ArrayBuffer[Double]
+    var srid = Coordinate.SRID_CARTESIAN.intValue
+    var num_waypoints = 0
+    for ((l, idx) <- link_array.zipWithIndex) {
+      val geom = l.geoMultiLine
+      val geom_length = geom.getLength
+      if (math.abs(geom_length - l.length) > 1) {
+        logWarning("Bad length: " + geom_length + " " + l.length + " " + l)
+      }
+      val coords = geom.getCoordinates
+      if (link.isEmpty && coords.length > 1) {
+        srid = coords.head.srid.intValue
+      }
+      num_waypoints += coords.length
+      // The offsets of the waypoints.
+      val cum = new Array[Double](coords.length)
+      for (i <- 1 until coords.length) {
+        cum(i) = cum(i - 1) + CoordinateGeometry.distance(coords(i - 1), coords(i))
+      }
+      val kept = if (tolerance > 0 && coords.length > 2) {
+        douglasPeucker(coords, tolerance)
+      } else {
+        Array.range(0, coords.length)
+      }
+      for (j <- 0 until kept.length - 1) {
+        val (a, b) = (kept(j), kept(j + 1))
+        // The original waypoints replaced by the chord.
+        val (d_start, d_end) = if (b == a + 1) {
+          (-1, -1)
+        } else {
+          val d_start = detail_lat.length
+          for (v <- a to b) {
+            detail_lat += coords(v).lat
+            detail_lon += coords(v).lon
+            detail_cum += cum(v)
+          }
+          (d_start, detail_lat.length - 1)
+        }
+        var cum_l = cum(a)
+        // Add some extra intermediate coordinates to make sure there is
+        // always one coordinate within the radius of the search circle.
+        // Necessary for very long segments.
+        for (s <- new Segment(coords(a), coords(b)).breakIntoSmallerSegments(max_length)) {
+          link += idx
+          cum_length += cum_l
+          length += s.length
+          start_lat += s.start.lat
+          start_lon += s.start.lon
+          end_lat += s.end.lat
+          end_lon += s.end.lon
+          detail_start += d_start
+          detail_end += d_end
+          cum_l += s.length
+        }
+      }
+    }
+    if (link.isEmpty) {
+      logWarning("The projector has an empty set of segments!!")
+    }
+    if (tolerance > 0) {
+      logInfo("Simplification: %d waypoints, %d segments, %d segments replaced" format (
+        num_waypoints, link.length, detail_start.count(_ >= 0)))
+      new SegmentStore(link_array, srid, link.toArray, cum_length.toArray, length.toArray,
+        start_lat.toArray, start_lon.toArray, end_lat.toArray, end_lon.toArray,
+        tolerance, detail_start.toArray, detail_end.toArray,
+        detail_lat.toArray, detail_lon.toArray, detail_cum.toArray)
+    } else {
+      new SegmentStore(link_array, srid, link.toArray, cum_length.toArray, length.toArray,
+        start_lat.toArray, start_lon.toArray, end_lat.toArray, end_lon.toArray)
+    }
+  }
+
+  /**
+   * The indexes of the waypoints kept by the Douglas-Peucker algorithm: all
+   * the waypoints are within tolerance meters of the simplified line. The
+   * first and the last waypoints are always kept.
+   */
+  def douglasPeucker(coords: Array[Coordinate], tolerance: Double): Array[Int] = {
+    val n = coords.length
+    val frame = PlanarFrame.forCoordinate(coords(0))
+    val xs = coords.map(c => frame.x(c))
+    val ys = coords.map(c => frame.y(c))
+    val keep = new Array[Boolean](n)
+    keep(0) = true
+    keep(n - 1) = true
+    // Ranges (first, last) still to simplify.
+    val stack = new collection.mutable.Stack[(Int, Int)]
+    stack.push((0, n - 1))
+    while (!stack.isEmpty) {
+      val (first, last) = stack.pop()
+      val ux = xs(last) - xs(first)
+      val uy = ys(last) - ys(first)
+      val l2 = ux * ux + uy * uy
+      var max_d = -1.0
+      var max_i = -1
+      for (i <- first + 1 until last) {
+        val k = if (l2 == 0) 0.0 else math.max(0.0, math.min(1.0, ((xs(i) - xs(first)) * ux + (ys(i) - ys(first)) * uy) / l2))
+        val ex = xs(i) - xs(first) - k * ux
+        val ey = ys(i) - ys(first) - k * uy
+        val d = math.sqrt(ex * ex + ey * ey)
+        if (d > max_d) {
+          max_d = d
+          max_i = i
+        }
+      }
+      if (max_d > tolerance) {
+        keep(max_i) = true
+        stack.push((first, max_i))
+        stack.push((max_i, last))
+      }
+    }
+    (0 until n).filter(keep).toArray
+  }
+}
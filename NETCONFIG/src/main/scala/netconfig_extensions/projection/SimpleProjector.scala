@@ -26,11 +26,13 @@ import math.Ordering
  *
  * Useful for testing.
  */
-class SimpleProjection[L <: Link](val links: Seq[L])
+class SimpleProjection[L <: Link](val links: Seq[L], segments: SegmentStore = null)
   extends Projector[L] {
 
-  def getCandidateSegmentsWithinRadius(c: Coordinate, radius: Double): Seq[Segment] = {
-    segments.keys.toSeq
-  }
+  override protected def prebuiltSegments = segments
+
+  private[this] val all_ids = Array.range(0, store.size)
+
+  def getCandidateSegmentIdsWithinRadius(c: Coordinate, radius: Double): Array[Int] = all_ids
 }
 
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference
+
+import core.DistancePolicy
+import netconfig.Datum.ProbeCoordinate
+import netconfig.Link
+
+/**
+ * Adapts the size of the search and of the projection to each point.
+ *
+ * The values in the parameters (maxPaths, maxSearchDepth, projectionRadius,
+ * maxProjectionReturns) are upper bounds, scaled down for the easy points:
+ *  - the paths between two points close in time and in space, given the
+ *    reported speed, are short and few
+ *  - the projections of a point with a good accuracy (low HDOP) are close to
+ *    the reported coordinate.
+ *
+ * The scale is between adaptiveMinScale and 1. Missing values (speed,
+ * HDOP) are interpreted conservatively (scale of 1).
+ */
+class AdaptiveParameters(val parameters: PathInferenceParameters2) {
+
+  private[this] def clamp(x: Double): Double = {
+    math.max(parameters.adaptiveMinScale, math.min(1.0, x))
+  }
+
+  private[this] def scaled(value: Int, scale: Double): Int = {
+    math.max(1, math.ceil(value * scale).toInt)
+  }
+
+  /**
+   * The scale of the path search between two points.
+   */
+  def pathScale(first_point: ProbeCoordinate[Link], last_point: ProbeCoordinate[Link]): Double = {
+    val dt = math.max(0.0, last_point.time - first_point.time)
+    val straight_distance = DistancePolicy.distanceInMeters(DistancePolicy.Site.PATH_SEARCH, first_point.coordinate, last_point.coordinate)
+    val speed_distance = last_point.speed match {
+      case null => 0.0
+      case s => s.doubleValue * dt
+    }
+    val distance = math.max(straight_distance, speed_distance)
+    clamp(math.max(distance / parameters.adaptiveReferenceDistance,
+      dt / parameters.adaptiveReferenceTimeGap))
+  }
+
+  /**
+   * The scale of the projection of a point.
+   */
+  def projectionScale(point: ProbeCoordinate[Link]): Double = point.hdop match {
+    case null => 1.0
+    case h => clamp(h.doubleValue / parameters.adaptiveReferenceHdop)
+  }
+
+  def maxPaths(first_point: ProbeCoordinate[Link], last_point: ProbeCoordinate[Link]): Int = {
+    scaled(parameters.maxPaths, pathScale(first_point, last_point))
+  }
+
+  def maxSearchDepth(first_point: ProbeCoordinate[Link], last_point: ProbeCoordinate[Link]): Int = {
+    scaled(parameters.maxSearchDepth, pathScale(first_point, last_point))
+  }
+
+  def projectionRadius(point: ProbeCoordinate[Link]): Double = {
+    parameters.projectionRadius * projectionScale(point)
+  }
+
+  def maxProjectionReturns(point: ProbeCoordinate[Link]): Int = {
+    scaled(parameters.maxProjectionReturns, projectionScale(point))
+  }
+}
+
+object AdaptiveParameters {
+  /**
+   * The adaptive parameters if enabled in the parameters, null otherwise.
+   */
+  def create(parameters: PathInferenceParameters2): AdaptiveParameters = {
+    if (parameters.adaptiveParameters) {
+      new AdaptiveParameters(parameters)
+    } else {
+      null
+    }
+  }
+}
@@ -24,6 +24,8 @@ import java.io.Serializable
 import netconfig.NetconfigException
 import path_inference.models._
 import path_inference.crf.ComputingStrategy
+import path_inference.shortest_path.CachePolicy
+import netconfig_extensions.projection.ProjectorType
 
 /**
  * New version of the parameters class to go around some issues with
@@ -39,6 +41,81 @@ class PathInferenceParameters2 extends Serializable {
 
   @BeanProperty var maxProjectionReturns: Int = 10
 
+  /**
+   * The spatial index used to project the points on the links: KDTree,
+   * RTree or Grid (with cells of the size of the projection radius).
+   * <p>
+   * Default value: KDTree
+   */
+  @BeanProperty var projectorType = ProjectorType.KDTree
+
+  /**
+   * If true, the points given to the filter were already projected (for
+   * example in batches, with ProjectionHookInterface.projectPoints): the
+   * vehicle filters only apply the constraints of the previous point instead
+   * of projecting the points again.
+   * <p>
+   * Default value: false
+   */
+  @BeanProperty var preProjectedPoints = false
+
+  /**
+   * The maximum number of cells in the cache of the projections (0 to
+   * disable the cache). The coordinates are quantized in square cells, and
+   * the candidate links of each cell are reused by all the points that fall
+   * in the cell.
+   * <p>
+   * Default value: 0
+   */
+  @BeanProperty var projectionCacheSize: Int = 0
+
+  /**
+   * The side of the cells of the projection cache, in meters. Smaller cells
+   * give fewer candidates per cell, and fewer hits.
+   * <p>
+   * Default value: 10
+   */
+  @BeanProperty var projectionCacheCellSize: Double = 10.0
+
+  /**
+   * If true, the projections returned by the cache are exact. Otherwise, all
+   * the points of a cell get the projection of the center of the cell (the
+   * distances are then off by at most half the diagonal of a cell).
+   * <p>
+   * Default value: true
+   */
+  @BeanProperty var projectionCacheExact = true
+
+  /**
+   * If positive, the points that report a heading are only projected on the
+   * segments whose bearing is within this number of degrees of the heading,
+   * so the opposite direction of a two-way street is not a candidate. If no
+   * segment matches, the heading is ignored.
+   * <p>
+   * Default value: 0 (heading not used)
+   */
+  @BeanProperty var headingTolerance: Double = 0.0
+
+  /**
+   * The heading of a point is ignored below this speed (in m/s), as the
+   * heading of a stopped vehicle is not reliable. Ignored if the speed is not
+   * reported.
+   * <p>
+   * Default value: 2
+   */
+  @BeanProperty var headingMinSpeed: Double = 2.0
+
+  /**
+   * If positive, the waypoints of the links are simplified (Douglas-Peucker)
+   * within this distance, in meters, before building the spatial index of the
+   * projector. This reduces the number of segments of dense geometries. The
+   * distances and the offsets of the projections are still computed on the
+   * original waypoints.
+   * <p>
+   * Default value: 0 (no simplification)
+   */
+  @BeanProperty var projectionSimplificationTolerance: Double = 0.0
+
   /**
    * For each vehicle, maximum time disparity between timestamp of last record
    *  and timestamp from last record seen
@@ -115,6 +192,58 @@ class PathInferenceParameters2 extends Serializable {
    * Default value: 10
    */
   @BeanProperty var maxPaths = 10;
+  /**
+   * The maximum number of expansions of the path searches between two
+   * points, for all the pairs of candidate links.
+   *
+   * Once this budget is exhausted, the searches return the paths found so
+   * far. This bounds the time spent on a single point.
+   * <p>
+   * Default value: 0 (no limit)
+   */
+  @BeanProperty var pathSearchMaxExpansions: Int = 0
+  /**
+   * The maximum time spent in the path searches between two points
+   * (milliseconds). See pathSearchMaxExpansions.
+   * <p>
+   * Default value: 0 (no limit)
+   */
+  @BeanProperty var pathSearchMaxTime: Double = 0.0
+  /**
+   * If true, maxPaths, maxSearchDepth, projectionRadius and
+   * maxProjectionReturns are scaled down for each point, depending on the
+   * time and distance to the previous point and on the accuracy of the point
+   * (see AdaptiveParameters).
+   * <p>
+   * Default value: false
+   */
+  @BeanProperty var adaptiveParameters = false
+  /**
+   * The smallest scale applied by the adaptive parameters.
+   * <p>
+   * Default value: 0.1
+   */
+  @BeanProperty var adaptiveMinScale = 0.1
+  /**
+   * The distance between two points (meters) above which the path search is
+   * not scaled down.
+   * <p>
+   * Default value: 1000
+   */
+  @BeanProperty var adaptiveReferenceDistance = 1000.0
+  /**
+   * The time between two points (seconds) above which the path search is
+   * not scaled down.
+   * <p>
+   * Default value: 60
+   */
+  @BeanProperty var adaptiveReferenceTimeGap = 60.0
+  /**
+   * The HDOP above which the projection is not scaled down.
+   * <p>
+   * Default value: 5
+   */
+  @BeanProperty var adaptiveReferenceHdop = 5.0
   /**
    * Threshold ratio for accepting long paths.
    * <p>
@@ -203,6 +332,147 @@ class PathInferenceParameters2 extends Serializable {
    */
   @BeanProperty var pathsCacheSize: Int = 100000
 
+  /**
+   * If positive, the paths cache is stored outside the java heap, in a buffer
+   * of this size (megabytes). The cache then holds at most pathsCacheSize
+   * elements, and fewer if the buffer fills up first.
+   *
+   * This considerably reduces the heap usage and the garbage collection
+   * pauses for large caches. A path of n links takes about 4(n+1) bytes.
+   * <p>
+   * Default value: 0 (paths are stored in the java heap)
+   */
+  @BeanProperty var pathsCacheOffHeapSize: Int = 0
+
+  /**
+   * The number of pairs of links without any path between them that are
+   * remembered, outside of the paths cache.
+   *
+   * These pairs are very common (opposite directions of the same road for
+   * example) and are stored in a compact structure (32 to 64 bytes per pair,
+   * see [[path_inference.shortest_path.UnreachablePairs]]). Set to 0 to
+   * store them in the paths cache instead.
+   * <p>
+   * Default value: 0 (feature disabled)
+   */
+  @BeanProperty var unreachablePairsCacheSize: Int = 0
+
+  /**
+   * The size of the paths cache private to each thread, in front of the
+   * shared paths cache.
+   *
+   * It removes most of the accesses to the shared cache, which are contended
+   * when several filters run in parallel. 256 is a good start for a few
+   * parallel filters.
+   * <p>
+   * Default value: 0 (feature disabled)
+   */
+  @BeanProperty var pathsCacheL1Size: Int = 0
+
+  /**
+   * The eviction policy of the path caches stored on the heap.
+   *
+   * TinyLFU only admits new paths in the cache if they are queried more
+   * often than the paths they would evict, which gives a better hit rate with
+   * noisy data. It does not apply to the off-heap cache.
+   * <p>
+   * Default value: LRU
+   */
+  @BeanProperty var pathsCachePolicy = CachePolicy.LRU
+
+  /**
+   * The minimum number of times a route must have been observed in previous
+   * outputs to be used by the historical path generator (see
+   * HistoricalPathGenerator).
+   * <p>
+   * Default value: 3
+   */
+  @BeanProperty var historicalPathsMinSupport: Int = 3
+
+  /**
+   * The number of search trees kept for each vehicle, to reuse the searches
+   * from the same origin links for the following points.
+   *
+   * Useful for high frequency data, in which the vehicle moves by a few
+   * links between two points. Only the links closer than
+   * incrementalSearchMaxDistance are searched this way.
+   * <p>
+   * Default value: 0 (feature disabled)
+   */
+  @BeanProperty var incrementalSearchOrigins: Int = 0
+
+  /**
+   * The maximum distance (straight line, meters) between two links for the
+   * incremental search (see incrementalSearchOrigins).
+   * <p>
+   * Default value: 300
+   */
+  @BeanProperty var incrementalSearchMaxDistance: Double = 300.0
+
+  /**
+   * The maximum driving distance (meters) of the paths found by the
+   * incremental search (see incrementalSearchOrigins). The pairs of links
+   * with fewer paths within this distance are sent to the regular path
+   * search.
+   * <p>
+   * Default value: 2400 (the bound of the default path search)
+   */
+  @BeanProperty var incrementalSearchMaxTravel: Double = 2400.0
+
+  /**
+   * The number of paths kept by the incremental search for each pair of links
+   * (see incrementalSearchOrigins). It is raised to maxPaths if lower, and
+   * the queries for more paths are sent to the regular path search.
+   * <p>
+   * Default value: 4
+   */
+  @BeanProperty var incrementalSearchPathsPerLink: Int = 4
+
+  /**
+   * The maximum number of expansions of each search tree of the incremental
+   * search (see incrementalSearchOrigins). The queries a tree cannot answer
+   * within this bound are sent to the regular path search.
+   * <p>
+   * Default value: 500
+   */
+  @BeanProperty var incrementalSearchMaxExpansions: Int = 500
+
+  /**
+   * The number of background threads that compute the paths from the last
+   * point of each vehicle before the next point arrives.
+   *
+   * These threads have a low priority and only fill the paths cache: use
+   * them if some processors are idle.
+   * <p>
+   * Default value: 0 (feature disabled)
+   */
+  @BeanProperty var pathPrefetchThreads: Int = 0
+
+  /**
+   * The maximum distance (meters) of the paths computed in the background
+   * (see pathPrefetchThreads).
+   * <p>
+   * Default value: 200
+   */
+  @BeanProperty var pathPrefetchMaxDistance: Double = 200.0
+
+  /**
+   * The number of candidate links of each point (the closest ones) from
+   * which the paths are computed in the background (see
+   * pathPrefetchThreads).
+   * <p>
+   * Default value: 3
+   */
+  @BeanProperty var pathPrefetchMaxLinks: Int = 3
+
+  /**
+   * The maximum number of expansions of the path searches computed in the
+   * background for each point (see pathPrefetchThreads).
+   * <p>
+   * Default value: 2000
+   */
+  @BeanProperty var pathPrefetchMaxExpansions: Int = 2000
+
   /**
    * If set to true, the projections in the output probe coordinates will be
    * sorted by decreasing order of probability.
@@ -221,6 +491,22 @@ class PathInferenceParameters2 extends Serializable {
     if (pathLengthThresholdRatio < 1) {
       throw new NetconfigException(null, "The length threshold ratio on the paths has to be greater than 1.");
     }
+
+    if (adaptiveMinScale <= 0 || adaptiveMinScale > 1) {
+      throw new NetconfigException(null, "The minimum adaptive scale has to be in (0, 1].");
+    }
+
+    if (headingTolerance > 180) {
+      throw new NetconfigException(null, "The heading tolerance has to be at most 180 degrees.");
+    }
+
+    if (projectionSimplificationTolerance < 0) {
+      throw new NetconfigException(null, "The simplification tolerance of the projector cannot be negative.");
+    }
+
+    if (projectionCacheSize > 0 && projectionCacheCellSize <= 0) {
+      throw new NetconfigException(null, "The cells of the projection cache need a positive size.");
+    }
   }
 
   /**
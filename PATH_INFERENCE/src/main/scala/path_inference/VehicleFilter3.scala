@@ -22,12 +22,17 @@ package path_inference
 
 import collection.mutable.{ ArrayBuffer, HashMap => MMap, Queue => MQueue }
 import collection.immutable.Queue
+import core.DistancePolicy
 import core.Time
 import core_extensions.MMLogging
 import netconfig.{ Link, NetconfigException }
 import netconfig.Datum.ProbeCoordinate
 import java.util.Comparator
 import path_inference.shortest_path.PathGenerator2
+import path_inference.shortest_path.IncrementalPathSearch
+import path_inference.shortest_path.PathPrefetcher
+import path_inference.shortest_path.SearchBudget
+import core_extensions.StripedCounter
 import path_inference.crf.ConditionalRandomField
 import path_inference.models.ObservationModel
 import path_inference.models.TransitionModel
@@ -41,7 +46,8 @@ private[path_inference] class VehicleFilter3(
   val parameters: PathInferenceParameters2,
   first_point: ProbeCoordinate[Link],
   output: FilterOutputInterface,
-  projection_hook: ProjectionHookInterface)
+  projection_hook: ProjectionHookInterface,
+  prefetcher: PathPrefetcher = null)
   extends MMLogging {
 
   /**
@@ -85,7 +91,13 @@ private[path_inference] class VehicleFilter3(
    * Assumes points are already mapped.
    */
   def addProbeCoordinate(p: ProbeCoordinate[Link]): Unit = {
-    val point = if (lastPoints.isEmpty) {
+    val point = if (parameters.preProjectedPoints) {
+      if (lastPoints.isEmpty) {
+        p
+      } else {
+        projection_hook.constrainToPreviousCoords(p, lastPoints.last)
+      }
+    } else if (lastPoints.isEmpty) {
       projection_hook.projectPoint(p)
     } else {
       projection_hook.projectPointWithPreviousCoords(p, lastPoints.last)
@@ -116,9 +128,31 @@ private[path_inference] class VehicleFilter3(
         reachable_links = reachable_links_
         exportOutput
       }
+      // Prepare the paths for the next point.
+      if (prefetcher != null) {
+        prefetcher.prefetch(id, linksByDistance(point))
+      }
     }
   }
 
+  /**
+   * The candidate links of a point, the closest ones first (in the order of
+   * the spots if the distances are unknown).
+   */
+  private[this] def linksByDistance(point: ProbeCoordinate[Link]): Seq[Link] = {
+    val spots = point.spots.toSeq
+    val distances = point.spotDistances
+    val ordered = if (distances == null) {
+      spots
+    } else {
+      spots.zipWithIndex.sortBy(z => {
+        val d = distances.get(z._2)
+        if (d.isNaN) Double.PositiveInfinity else d
+      }).map(_._1)
+    }
+    ordered.map(_.link).distinct
+  }
+
   /**
    * Sends a hint that the the tracker should try to finish current computations
    * and return results.
@@ -127,6 +161,9 @@ private[path_inference] class VehicleFilter3(
    * The internal state is left undefined.
    */
   def finalizeTracker: Unit = {
+    if (prefetcher != null) {
+      prefetcher.cancel(id)
+    }
     // Flush out everything we can
     performComputaitons(lastPoints, reachable_links, 0, 1)
     // Finish the computations on the CRF side
@@ -245,9 +282,18 @@ private[path_inference] object VehicleFilter {
     trans_model: TransitionModel,
     output: FilterOutputInterface,
     projection_hook: ProjectionHookInterface,
-    path_gen: PathGenerator2): VehicleFilter3 = {
+    path_gen: PathGenerator2,
+    prefetcher: PathPrefetcher = null): VehicleFilter3 = {
     val crf = createCRF(params, obs_model, trans_model)
-    new VehicleFilter3(crf, path_gen, params, first_point, output, projection_hook)
+    val vehicle_path_gen = if (params.incrementalSearchOrigins > 0) {
+      new IncrementalPathSearch(path_gen, params.incrementalSearchOrigins,
+        params.incrementalSearchMaxDistance, params.incrementalSearchMaxTravel,
+        math.max(params.incrementalSearchPathsPerLink, params.maxPaths),
+        params.incrementalSearchMaxExpansions)
+    } else {
+      path_gen
+    }
+    new VehicleFilter3(crf, vehicle_path_gen, params, first_point, output, projection_hook, prefetcher)
   }
 
   import path_inference.crf._
@@ -346,18 +392,68 @@ private[path_inference] object ShortestPaths extends MMLogging {
     last_point: ProbeCoordinate[Link],
     previous_paths_regrouped: RegroupedPathsMap,
     parameters: PathInferenceParameters2,
-    path_gen: PathGenerator2): Array[Path] =
-    getPathsBetweenFast(first_point, last_point,
+    path_gen: PathGenerator2): Array[Path] = {
+    val adaptive = AdaptiveParameters.create(parameters)
+    // The adaptive search depth applies to each search, the limits in the
+    // parameters to all the searches of the point.
+    val max_search_expansions = if (adaptive == null) {
+      0
+    } else {
+      adaptive.maxSearchDepth(first_point, last_point)
+    }
+    val budget = if (parameters.pathSearchMaxExpansions > 0 || parameters.pathSearchMaxTime > 0 || max_search_expansions > 0) {
+      new SearchBudget(parameters.pathSearchMaxExpansions,
+        (parameters.pathSearchMaxTime * 1e6).toLong, max_search_expansions)
+    } else {
+      null
+    }
+    val max_selected_paths = if (adaptive == null) {
+      parameters.maxPaths
+    } else {
+      adaptive.maxPaths(first_point, last_point)
+    }
+    val paths = getPathsBetweenFast(first_point, last_point,
       previous_paths_regrouped, path_gen,
       parameters.maxPaths,
       parameters.pathOffsetMinLength,
-      parameters.pathLengthThresholdRatio)
+      parameters.pathLengthThresholdRatio,
+      budget,
+      max_selected_paths)
+    if (budget != null) {
+      recordBudget(budget)
+    }
+    paths
+  }
+
+  private[this] val num_budgeted_points = new StripedCounter
+  private[this] val num_truncated_points = new StripedCounter
+
+  /**
+   * The number of points for which the search budget was exhausted
+   * (approximate).
+   */
+  def numTruncatedPoints: Long = num_truncated_points.sum
+
+  private[this] def recordBudget(budget: SearchBudget): Unit = {
+    num_budgeted_points.increment()
+    if (budget.truncated && num_truncated_points.increment() % 1000 == 0) {
+      logInfo("Path search budget exhausted for %d points out of %d" format (num_truncated_points.sum, num_budgeted_points.sum))
+    }
+  }
 
   /**
    * Computes all the paths between two points, based on all the parameters.
    *
    * Optimized function for memory and grided sampling.
    *
+   * The budget, if not null, bounds the work of all the path searches for
+   * this pair of points: the searches started after its exhaustion only
+   * return the cached paths.
+   *
+   * maxPaths is the number of paths requested for each pair of links, and
+   * maxSelectedPaths (if positive) the number of paths returned for the pair
+   * of points (maxPaths otherwise).
+   *
    * TODO: this is  one of the monster functions that deserves documentation...
    */
   def getPathsBetweenFast(
@@ -367,7 +463,9 @@ private[path_inference] object ShortestPaths extends MMLogging {
     path_gen: PathGenerator2,
     maxPaths: Int,
     pathOffsetMinLength: Double,
-    pathLengthThresholdRatio: Double): Array[Path] = {
+    pathLengthThresholdRatio: Double,
+    budget: SearchBudget = null,
+    maxSelectedPaths: Int = 0): Array[Path] = {
     // First generate all possible paths
     val paths = new MQueue[Path]
     // Regroup the spots by link
@@ -375,7 +473,7 @@ private[path_inference] object ShortestPaths extends MMLogging {
     var all_pairs = 0
     val start_spots_by_link = first_point.spots.groupBy(_.link)
     val end_spots_by_link = last_point.spots.groupBy(_.link)
-    val min_path_length = math.max(pathOffsetMinLength, pathLengthThresholdRatio * first_point.coordinate.distanceDefaultMethodInMeters(last_point.coordinate))
+    val min_path_length = math.max(pathOffsetMinLength, pathLengthThresholdRatio * DistancePolicy.distanceInMeters(DistancePolicy.Site.PATH_SEARCH, first_point.coordinate, last_point.coordinate))
     // For each pair of links, compute the paths.
     val paths_regrouped = for (
       starts <- start_spots_by_link;
@@ -388,7 +486,7 @@ private[path_inference] object ShortestPaths extends MMLogging {
         // Purely forward paths
         assert(end_link != null)
         assert(start_link != null)
-        val forward_paths = path_gen.getShortestPaths(start_link, end_link, maxPaths).map(_.toArray)
+        val forward_paths = path_gen.getShortestPaths(start_link, end_link, maxPaths, budget).map(_.toArray)
         // We do not know
         val same_link_paths: Seq[Array[Link]] = if (start_link == end_link) {
           Seq(Array(start_link))
@@ -453,7 +551,8 @@ private[path_inference] object ShortestPaths extends MMLogging {
     val filtered_paths: Seq[Path] = paths_regrouped.values.flatMap(_.values.toSeq.flatten.toSeq).toSeq
     //    logInfo("fast paths computation: %d link pairs, %d paths found (%d/%d hits)" format (paths_regrouped.size, filtered_paths.size, new_pairs, all_pairs))
     // Somehow, the toArray is necessary to prevent some superslow conversions to java linkedlist
-    val best_paths_with_length = ord.leastOf(filtered_paths.map(p => (p, p.length)).toArray.toSeq, maxPaths)
+    val num_selected = if (maxSelectedPaths > 0) math.min(maxSelectedPaths, maxPaths) else maxPaths
+    val best_paths_with_length = ord.leastOf(filtered_paths.map(p => (p, p.length)).toArray.toSeq, num_selected)
     val best_paths = best_paths_with_length.map(_._1)
     return best_paths.toArray
   }
@@ -500,7 +599,7 @@ private[path_inference] object ShortestPaths extends MMLogging {
     // A lot is going on here...
     // Filter the paths that are too backward
     // sort by length and trim the list to the 'shortest' paths (includes backward paths short enough)
-    val min_path_length = math.max(pathOffsetMinLength, pathLengthThresholdRatio * first_point.coordinate.distanceDefaultMethodInMeters(last_point.coordinate))
+    val min_path_length = math.max(pathOffsetMinLength, pathLengthThresholdRatio * DistancePolicy.distanceInMeters(DistancePolicy.Site.PATH_SEARCH, first_point.coordinate, last_point.coordinate))
     val filtered_paths = paths.filter(p => p.length.abs <= min_path_length)
     //    val filtered_paths = paths.filter(p=>p.length>=parameters.minBackwardOffset && p.length.abs<=min_path_length).
     //    sortBy(_.length).take(parameters.maxPaths)
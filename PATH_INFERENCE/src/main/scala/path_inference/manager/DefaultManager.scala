@@ -23,7 +23,9 @@ import netconfig.Datum.ProbeCoordinate
 import netconfig.Link
 import path_inference.models.ObservationModel
 import path_inference.models.TransitionModel
+import path_inference.shortest_path.DefaultCachedPathGenerator
 import path_inference.shortest_path.PathGenerator2
+import path_inference.shortest_path.PathPrefetcher
 import path_inference.PathInferenceParameters2
 import path_inference.VehicleFilter3
 import path_inference.VehicleFilter
@@ -47,6 +49,20 @@ class DefaultManager(
 
   private[this] val internal_storage = new InternalStorage(parameters)
 
+  /**
+   * Computes in the background the paths for the next points, if enabled.
+   */
+  private[this] val prefetcher = common_path_discovery match {
+    case cached: DefaultCachedPathGenerator if parameters.pathPrefetchThreads > 0 =>
+      new PathPrefetcher(cached, parameters.maxPaths,
+        parameters.pathPrefetchMaxDistance, parameters.pathPrefetchThreads,
+        parameters.pathPrefetchMaxLinks, parameters.pathPrefetchMaxExpansions)
+    case _ if parameters.pathPrefetchThreads > 0 =>
+      logWarning("The paths are not cached, path prefetching disabled")
+      null
+    case _ => null
+  }
+
   private[this] var point_counter = 0
 
   private val printMessageCounter = 1000
@@ -75,7 +91,7 @@ class DefaultManager(
     v_filters.get(id) match {
       case None =>
         logInfo("creating new tracker for id " + id)
-        val filter = VehicleFilter.createVehicleFilter(parameters, point, obs_model, trans_model, internal_storage, projection_hook, common_path_discovery)
+        val filter = VehicleFilter.createVehicleFilter(parameters, point, obs_model, trans_model, internal_storage, projection_hook, common_path_discovery, prefetcher)
         v_filters += id -> filter
       // No need to add the point, it is already included in the constructor.
       case Some(filter) =>
@@ -110,6 +126,9 @@ class DefaultManager(
       filter.finalizeTracker
     // Discard all the filters, since we are done with them.
     v_filters = Map.empty
+    if (prefetcher != null) {
+      prefetcher.shutdown()
+    }
     // Make sure the cache is flushed to the disk, if necessary.
     common_path_discovery.finalizeOperations
   }
@@ -18,10 +18,16 @@ package path_inference.manager
 
 import core_extensions.MMLogging
 import collection.JavaConversions._
-import netconfig_extensions.projection.KDProjector
+import netconfig_extensions.projection.ParallelProjection
+import netconfig_extensions.projection.ProjectionCache
+import netconfig_extensions.projection.Projections
+import netconfig_extensions.projection.ProjectorFactory
+import netconfig_extensions.projection.ProjectorType
 import netconfig.Datum.ProbeCoordinate
 import netconfig.Link
+import netconfig.Spot
 import path_inference.PathInferenceParameters2
+import path_inference.AdaptiveParameters
 
 trait ProjectionHookInterface {
   def projectPoint(point: ProbeCoordinate[Link]): ProbeCoordinate[Link]
@@ -29,6 +35,38 @@ trait ProjectionHookInterface {
   def projectPointWithPreviousCoords(
     point: ProbeCoordinate[Link],
     previous_point: ProbeCoordinate[Link]): ProbeCoordinate[Link]
+
+  /**
+   * Applies the constraints of the previous point to a point that was
+   * already projected with projectPoint or projectPoints.
+   *
+   * By default, the point is projected again.
+   */
+  def constrainToPreviousCoords(
+    point: ProbeCoordinate[Link],
+    previous_point: ProbeCoordinate[Link]): ProbeCoordinate[Link] = {
+    projectPointWithPreviousCoords(point, previous_point)
+  }
+
+  /**
+   * Projects a batch of points.
+   *
+   * @param previous_points if not null, previous_points(i) is the previous
+   *   point of points(i) (or null if there is none).
+   * @param res a buffer for the results, reused if it is not null and large
+   *   enough.
+   * @return the buffer that contains the projected points.
+   */
+  def projectPoints(
+    points: Array[ProbeCoordinate[Link]],
+    previous_points: Array[ProbeCoordinate[Link]],
+    res: Array[ProbeCoordinate[Link]]): Array[ProbeCoordinate[Link]] = {
+    val out = ProjectionHook.resultBuffer(points.length, res)
+    for (i <- 0 until points.length) {
+      out(i) = ProjectionHook.projectOne(this, points, previous_points, i)
+    }
+    out
+  }
 }
 
 class EmptyHook extends ProjectionHookInterface {
@@ -41,23 +79,111 @@ class EmptyHook extends ProjectionHookInterface {
 
 /**
  * @param forwardTimeDelta in seconds
+ * @param adaptive if not null, scales the radius and the number of returns
+ *   for each point.
+ * @param projector_type the spatial index used by the projector.
+ * @param cache_size if positive, the closest links are cached for this
+ *   number of cells (see [[netconfig_extensions.projection.ProjectionCache]]).
+ * @param cache_cell_size the side of the cells of the cache (meters).
+ * @param cache_exact if false, the points of a cell share the projection of
+ *   the center of the cell.
+ * @param index_file if not null, the file that stores the segments of the
+ *   projector between the runs (see
+ *   [[netconfig_extensions.projection.ProjectorIndex]]).
+ * @param heading_tolerance if positive, the points that report a heading are
+ *   only projected on the segments with a bearing within this number of
+ *   degrees of the heading.
+ * @param heading_min_speed the heading is ignored below this speed (m/s),
+ *   when the speed is known.
+ * @param simplification if positive, the tolerance (meters) of the
+ *   simplification of the links in the spatial index.
  * @author tjhunter
  */
 class ProjectionHook(
   links: Seq[Link],
-  max_returns: Int,
-  radius: Double,
-  grid_step: Double) extends MMLogging with ProjectionHookInterface {
+  default_max_returns: Int,
+  default_radius: Double,
+  grid_step: Double,
+  adaptive: AdaptiveParameters = null,
+  projector_type: ProjectorType.Value = ProjectorType.KDTree,
+  cache_size: Int = 0,
+  cache_cell_size: Double = 10.0,
+  cache_exact: Boolean = true,
+  index_file: String = null,
+  heading_tolerance: Double = 0.0,
+  heading_min_speed: Double = 2.0,
+  simplification: Double = 0.0) extends MMLogging with ProjectionHookInterface {
+
+  val projector = ProjectorFactory.fromLinks(links, projector_type, default_radius, index_file, simplification)
+
+  val cache = if (cache_size > 0) {
+    new ProjectionCache(projector, cache_cell_size, cache_size, cache_exact)
+  } else {
+    null
+  }
+
+  private[this] def closestLinks(point: ProbeCoordinate[Link], radius: Double, max_returns: Int): Projections[Link] = {
+    if (useHeading(point)) {
+      val heading = point.heading.doubleValue
+      val res = if (cache == null) {
+        projector.project(point.coordinate, radius, max_returns, heading, heading_tolerance)
+      } else {
+        cache.project(point.coordinate, radius, max_returns, heading, heading_tolerance)
+      }
+      // A bad heading should not drop the point.
+      if (!res.isEmpty) {
+        return res
+      }
+    }
+    if (cache == null) {
+      projector.project(point.coordinate, radius, max_returns)
+    } else {
+      cache.project(point.coordinate, radius, max_returns)
+    }
+  }
 
-  val projector = new KDProjector(links)
+  /**
+   * The samples of the grid on the closest links, which go through the
+   * heading filter and the cache.
+   */
+  private[this] def projectOnGrid(point: ProbeCoordinate[Link], radius: Double, max_returns: Int): Projections[Link] = {
+    val links = closestLinks(point, radius, max_returns).spots
+    projector.projectOnGrid(point.coordinate, radius, max_returns, grid_step, links)
+  }
 
+  private[this] def useHeading(point: ProbeCoordinate[Link]): Boolean = {
+    (heading_tolerance > 0
+      && point.heading != null
+      && (point.speed == null || point.speed.doubleValue >= heading_min_speed))
+  }
+
+  /**
+   * The points are projected in parallel, on the fork-join pool of the
+   * projectors.
+   */
+  override def projectPoints(
+    points: Array[ProbeCoordinate[Link]],
+    previous_points: Array[ProbeCoordinate[Link]],
+    res: Array[ProbeCoordinate[Link]]): Array[ProbeCoordinate[Link]] = {
+    val out = ProjectionHook.resultBuffer(points.length, res)
+    ParallelProjection.parallelFor(points.length)(i => {
+      out(i) = ProjectionHook.projectOne(this, points, previous_points, i)
+    })
+    out
+  }
+
+  /**
+   * The reprojected point keeps the distances computed by the projector (see
+   * ProbeCoordinate.spotDistances).
+   */
   def projectPoint(point: ProbeCoordinate[Link]): ProbeCoordinate[Link] = {
-    val proj_spots = if (grid_step > 0) {
-      projector.getGridProjection(point.coordinate, radius, max_returns, grid_step)
+    val (radius, max_returns) = projectionBounds(point)
+    val projs = if (grid_step > 0) {
+      projectOnGrid(point, radius, max_returns)
     } else {
-      projector.getClosestLinks(point.coordinate, radius, max_returns)
+      closestLinks(point, radius, max_returns)
     }
-    val reprojected = point.reprojected(proj_spots)
+    val reprojected = point.reprojected(projs.spots, projs.distances)
     reprojected
   }
 
@@ -69,35 +195,116 @@ class ProjectionHook(
   def projectPointWithPreviousCoords(
     point: ProbeCoordinate[Link],
     previous_point: ProbeCoordinate[Link]): ProbeCoordinate[Link] = {
-    val proj_spots = if (grid_step > 0) {
-      projector.getGridProjection(point.coordinate, radius, max_returns, grid_step)
+    val (radius, max_returns) = projectionBounds(point)
+    val projs = if (grid_step > 0) {
+      projectOnGrid(point, radius, max_returns)
     } else {
       // In the case of picking the most likely per link, we need to be a bit
       // more careful.
-      val new_projs = projector.getClosestLinks(point.coordinate,
-        radius, max_returns)
-      val previous_by_link = previous_point.spots.groupBy(_.link)
-      new_projs.map(sp => {
-        previous_by_link.get(sp.link) match {
-          case Some(other_sps) => {
-            assert(other_sps.size == 1)
-            val other_sp = other_sps.head
-            if (other_sp.offset > sp.offset)
-              other_sp
-            else sp
-          }
-          case None => sp
-        }
-      })
+      val new_projs = closestLinks(point, radius, max_returns)
+      forwardSpots(new_projs, previous_point)
     }
-    val reprojected = point.reprojected(proj_spots)
+    val reprojected = point.reprojected(projs.spots, projs.distances)
     reprojected
   }
+
+  /**
+   * Same contract as projectPointWithPreviousCoords, without projecting the
+   * point again.
+   */
+  override def constrainToPreviousCoords(
+    point: ProbeCoordinate[Link],
+    previous_point: ProbeCoordinate[Link]): ProbeCoordinate[Link] = {
+    if (grid_step > 0) {
+      point
+    } else {
+      val spots = point.spots.toSeq.toArray
+      val distances = if (point.spotDistances == null) {
+        Array.fill(spots.length)(Double.NaN)
+      } else {
+        point.spotDistances.rawData.clone()
+      }
+      val projs = forwardSpots(new Projections(spots, distances), previous_point)
+      point.reprojected(projs.spots, projs.distances)
+    }
+  }
+
+  /**
+   * Moves each spot forward to the spot of the previous point on the same
+   * link, if it is further on the link. The distance of a moved spot is
+   * unknown (NaN).
+   */
+  private[this] def forwardSpots(
+    new_projs: Projections[Link],
+    previous_point: ProbeCoordinate[Link]): Projections[Link] = {
+    val previous_by_link = previous_point.spots.groupBy(_.link)
+    val distances = new_projs.distances.clone()
+    val spots = new_projs.spots.zipWithIndex.map(z => {
+      val (sp, i) = z
+      previous_by_link.get(sp.link) match {
+        case Some(other_sps) => {
+          assert(other_sps.size == 1)
+          val other_sp = other_sps.head
+          if (other_sp.offset > sp.offset) {
+            distances(i) = Double.NaN
+            other_sp
+          } else sp
+        }
+        case None => sp
+      }
+    })
+    new Projections(spots, distances)
+  }
+
+  private[this] def projectionBounds(point: ProbeCoordinate[Link]): (Double, Int) = {
+    if (adaptive == null) {
+      (default_radius, default_max_returns)
+    } else {
+      (adaptive.projectionRadius(point), adaptive.maxProjectionReturns(point))
+    }
+  }
 }
 
 object ProjectionHook {
-  def create(links: Seq[Link], parameters: PathInferenceParameters2): ProjectionHookInterface =
+
+  private[manager] def resultBuffer(
+    n: Int,
+    res: Array[ProbeCoordinate[Link]]): Array[ProbeCoordinate[Link]] = {
+    if (res != null && res.length >= n) {
+      res
+    } else {
+      new Array[ProbeCoordinate[Link]](n)
+    }
+  }
+
+  private[manager] def projectOne(
+    hook: ProjectionHookInterface,
+    points: Array[ProbeCoordinate[Link]],
+    previous_points: Array[ProbeCoordinate[Link]],
+    i: Int): ProbeCoordinate[Link] = {
+    if (previous_points == null || previous_points(i) == null) {
+      hook.projectPoint(points(i))
+    } else {
+      hook.projectPointWithPreviousCoords(points(i), previous_points(i))
+    }
+  }
+
+  /**
+   * @param index_file if not null, the segments of the projector are read
+   *   from this file (or written to it the first time). The links must then
+   *   always be given in the same order.
+   */
+  def create(links: Seq[Link], parameters: PathInferenceParameters2, index_file: String = null): ProjectionHookInterface =
     new ProjectionHook(links, parameters.maxProjectionReturns,
       parameters.projectionRadius,
-      parameters.projectionGridStep)
+      parameters.projectionGridStep,
+      AdaptiveParameters.create(parameters),
+      parameters.projectorType,
+      parameters.projectionCacheSize,
+      parameters.projectionCacheCellSize,
+      parameters.projectionCacheExact,
+      index_file,
+      parameters.headingTolerance,
+      parameters.headingMinSpeed,
+      parameters.projectionSimplificationTolerance)
 }
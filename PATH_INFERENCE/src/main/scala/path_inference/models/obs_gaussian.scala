@@ -19,6 +19,7 @@
  */
 
 package path_inference.models
+import core.DistancePolicy
 import netconfig.Datum.ProbeCoordinate
 import netconfig.Link
 
@@ -32,9 +33,7 @@ class IsoGaussianObservationModel(val parameters: IsoGaussianObservationParamete
     val num_spots = point.spots.size
     val res = new Array[Double](num_spots)
     (0 until num_spots).map(spidx => {
-      val spot = point.spots.get(spidx)
-      val c = spot.toCoordinate
-      val d = point.coordinate.distanceDefaultMethodInMeters(spot.toCoordinate)
+      val d = IsoGaussianObservationModel.spotDistance(point, spidx)
       -0.5 * d * d
     }).toArray
   }
@@ -44,11 +43,25 @@ class IsoGaussianObservationModel(val parameters: IsoGaussianObservationParamete
       val num_spots = point.spots.size
       val res = new Array[Double](num_spots)
       for (spidx <- 0 until num_spots) {
-        val spot = point.spots.get(spidx)
-        val c = spot.toCoordinate
-        val d = point.coordinate.distanceDefaultMethodInMeters(spot.toCoordinate)
+        val d = IsoGaussianObservationModel.spotDistance(point, spidx)
         res(spidx) = -0.5 * d * d / parameters.variance
       }
       res
     }
 }
+
+object IsoGaussianObservationModel {
+  /**
+   * The distance between the point and one of its spots: the distance
+   * computed by the projector if the point carries it, otherwise the distance
+   * to the coordinate of the spot.
+   */
+  def spotDistance(point: ProbeCoordinate[Link], spidx: Int): Double = {
+    val distances = point.spotDistances
+    if (distances != null && !distances.get(spidx).isNaN) {
+      distances.get(spidx)
+    } else {
+      DistancePolicy.distanceInMeters(DistancePolicy.Site.OBSERVATION, point.coordinate, point.spots.get(spidx).toCoordinate)
+    }
+  }
+}
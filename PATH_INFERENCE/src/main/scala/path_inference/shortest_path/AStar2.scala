@@ -67,6 +67,10 @@ final class AStar2(
   }
 
   def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+    getShortestPaths(start_link, end_link, max_num_paths, null)
+  }
+
+  override def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
     val res = new ArrayBuffer[Array[Link]]()
     val queue: PriorityQueue[List[LinkWithCosts]] = new PriorityQueue[List[LinkWithCosts]]()(ordering)
 
@@ -74,8 +78,20 @@ final class AStar2(
 
     queue += List((start_link, 0.0, distance(start_link, end_link, local_mapping)))
 
+    val iters = if (budget != null && budget.max_search_expansions > 0) {
+      math.min(max_iters, budget.max_search_expansions)
+    } else {
+      max_iters
+    }
     var i = 0
-    while ((!queue.isEmpty) && res.length < max_num_paths && i < max_iters) {
+    while ((!queue.isEmpty) && res.length < max_num_paths && i < iters) {
+      if (budget != null) {
+        if (budget.exhausted) {
+          budget.markTruncated()
+          return res.toArray
+        }
+        budget.spend()
+      }
       i += 1
       val elems = queue.dequeue
       val heur_cost = elems.head._3
@@ -105,6 +121,12 @@ final class AStar2(
         })
       }
     }
+    // The depth of the budget is lower than the depth of this search: the
+    // result may be incomplete and must not be cached as the paths between
+    // these links.
+    if (iters < max_iters && i >= iters && !queue.isEmpty && res.length < max_num_paths) {
+      budget.markTruncated()
+    }
     res.toArray
   }
 }
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+/**
+ * The eviction policies available for the path caches.
+ */
+object CachePolicy extends Enumeration {
+  type CachePolicy = Value
+
+  /**
+   * Least recently used elements are evicted first.
+   */
+  val LRU = Value("LRU")
+
+  /**
+   * Small LRU window followed by a main region in which new elements are only
+   * admitted if they are more frequent than the element they would evict
+   * (TinyLFU). Resists well to the one-off queries of noisy data.
+   */
+  val TinyLFU = Value("TinyLFU")
+}
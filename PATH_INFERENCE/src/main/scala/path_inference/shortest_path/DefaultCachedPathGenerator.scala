@@ -21,42 +21,78 @@ import collection.JavaConversions._
 import com.google.common.collect.MapMaker
 import java.util.concurrent.ConcurrentMap
 import core_extensions.MMLogging
+import core_extensions.StripedCounter
 import com.google.common.cache.CacheBuilder
 import com.google.common.cache.Cache
 
+/**
+ * A path generator that caches the results of another path generator.
+ *
+ * This class is thread-safe and can be shared between multiple filters
+ * running in parallel. Concurrent requests for the same pair of links are only
+ * computed once: the first request performs the computation and the others
+ * wait for it.
+ *
+ * The pairs of links between which no path could be found are kept in a
+ * separate, compact [[path_inference.shortest_path.UnreachablePairs]] set, so
+ * that they do not take any room in the paths caches.
+ *
+ * @param paths_cache_backend the storage for the paths cache. If null, a Guava
+ *   cache of size path_cache_size is used.
+ * @param path_cache_backend the storage for the single path cache. If null, a
+ *   Guava cache of size path_cache_size is used.
+ * @param unreachable_pairs_size the maximum number of unreachable pairs to
+ *   remember (per generation). If 0, the unreachable pairs are stored in the
+ *   paths cache like any other result.
+ * @param link_index the identifiers of the links, shared with the
+ *   backend if necessary.
+ */
 final class DefaultCachedPathGenerator(
   private[this] val path_gen: PathGenerator2,
   private[this] val printMessageValue: Int = 100000,
-  path_cache_size: Int) extends PathGenerator2 with MMLogging {
+  path_cache_size: Int,
+  paths_cache_backend: PathCacheBackend[Array[Array[Link]]] = null,
+  unreachable_pairs_size: Int = 0,
+  private[this] val link_index: LinkIndex = new LinkIndex,
+  path_cache_backend: PathCacheBackend[Array[Link]] = null) extends PathGenerator2 with MMLogging {
 
   val x: Cache[PathKey, Array[Link]] = (CacheBuilder.newBuilder()).maximumSize(path_cache_size).build()
 
-  private[this] val pathCache: Cache[PathKey, Array[Link]] = (CacheBuilder.newBuilder()).maximumSize(path_cache_size).build()
-  private[this] val pathsCache: Cache[PathKey, Array[Array[Link]]] = (CacheBuilder.newBuilder()).maximumSize(path_cache_size).build()
-
-  private[this] var total_queries = 0
-  private[this] var cache_misses = 0
-  private[this] var num_paths_computed = 0
+  private[this] val pathCache: PathCacheBackend[Array[Link]] = if (path_cache_backend == null) {
+    new GuavaPathCacheBackend[Array[Link]](path_cache_size)
+  } else {
+    path_cache_backend
+  }
+  private[this] val pathsCache: PathCacheBackend[Array[Array[Link]]] = if (paths_cache_backend == null) {
+    new GuavaPathCacheBackend[Array[Array[Link]]](path_cache_size)
+  } else {
+    paths_cache_backend
+  }
 
-  def getPathInCache(key: PathKey): Option[Array[Link]] = {
-    val res = pathCache.getIfPresent(key)
-    if (res == null)
-      None
-    else Some(res)
+  private[this] val unreachablePairs: Option[UnreachablePairs] = if (unreachable_pairs_size > 0) {
+    Some(new UnreachablePairs(unreachable_pairs_size))
+  } else {
+    None
   }
 
+  private[this] val pathLoads = new SingleFlight[PathKey, Array[Link]]
+  // The paths, and true if the search was complete.
+  private[this] val pathsLoads = new SingleFlight[PathKey, (Array[Array[Link]], Boolean)]
+
+  private[this] val total_queries = new StripedCounter
+  private[this] val cache_misses = new StripedCounter
+  private[this] val num_paths_computed = new StripedCounter
+  private[this] val unreachable_hits = new StripedCounter
+  private[this] val truncated_searches = new StripedCounter
+  private[this] val prefetch_computations = new StripedCounter
+
+  def getPathInCache(key: PathKey): Option[Array[Link]] = pathCache.get(key)
+
   def putPathInCache(key: PathKey, path: Array[Link]): Unit = {
     pathCache.put(key, path)
   }
 
-  def getPathsInCache(key: PathKey): Option[Array[Array[Link]]] = {
-    val res = pathsCache.getIfPresent(key)
-    if (res == null) {
-      None
-    } else {
-      Some(res)
-    }
-  }
+  def getPathsInCache(key: PathKey): Option[Array[Array[Link]]] = pathsCache.get(key)
 
   def putPathsInCache(key: PathKey, paths: Array[Array[Link]]): Unit = {
     pathsCache.put(key, paths)
@@ -64,70 +100,186 @@ final class DefaultCachedPathGenerator(
 
   def getApproximatePathsCacheSize: Int = pathsCache.size.toInt
 
-  def getApproximatePathCacheSize: Int = pathCache.size.toInt
+  def getApproximateUnreachablePairsSize: Int = unreachablePairs.map(_.size).getOrElse(0)
 
-  def getShortestPath(start_link: Link, end_link: Link): Array[Link] = {
-    val key = PathKey(start_link, end_link)
-    var print_info = false
-    var print_total_queries = 0
-    var print_cache_misses = 0
-    total_queries += 1
-    if (this.total_queries >= printMessageValue) {
-      print_info = true
-      print_total_queries = total_queries
-      print_cache_misses = cache_misses
-      total_queries = 0
-      cache_misses = 0
+  /**
+   * True if no path could be found before between these two links.
+   */
+  def isKnownUnreachable(start_link: Link, end_link: Link): Boolean = unreachablePairs match {
+    case Some(pairs) => {
+      val start_id = link_index.idIfPresent(start_link)
+      val end_id = link_index.idIfPresent(end_link)
+      start_id >= 0 && end_id >= 0 && pairs.contains(start_id, end_id)
+    }
+    case None => false
+  }
+
+  /**
+   * Records that the search did not find any path between these two links,
+   * within the bounds of the search.
+   *
+   * @return false if the unreachable pairs are not tracked separately.
+   */
+  private[this] def markUnreachable(start_link: Link, end_link: Link): Boolean = unreachablePairs match {
+    case Some(pairs) => {
+      pairs.add(link_index.id(start_link), link_index.id(end_link))
+      true
     }
-    if (print_info) {
+    case None => false
+  }
+
+  def getApproximatePathCacheSize: Int = pathCache.size.toInt
+
+  /**
+   * The number of queries received so far (approximate).
+   */
+  def numQueries: Long = total_queries.sum
+
+  /**
+   * The number of queries that required a new computation (approximate).
+   */
+  def numCacheMisses: Long = cache_misses.sum
+
+  /**
+   * The number of computations performed in the background by
+   * prefetchShortestPaths (approximate). They are not counted as queries
+   * nor as cache misses.
+   */
+  def numPrefetchComputations: Long = prefetch_computations.sum
+
+  /**
+   * The number of searches stopped by their budget (approximate).
+   */
+  def numTruncatedSearches: Long = truncated_searches.sum
+
+  /**
+   * The fraction of the queries answered without any new computation
+   * (approximate).
+   */
+  def hitRate: Double = {
+    val queries = total_queries.sum
+    if (queries == 0) 0.0 else 1.0 - cache_misses.sum.toDouble / queries
+  }
+
+  /**
+   * Counts a query, and prints some statistics every printMessageValue
+   * queries (per thread).
+   */
+  private[this] def recordQuery(cache_name: String): Unit = {
+    if (total_queries.increment() % printMessageValue == 0) {
       // We do not care about being slightly off here.
-      logInfo("Single path cache: " + print_total_queries +
-        " queries, " + print_cache_misses + " misses, elements currently in cache: " +
+      val queries = total_queries.sum
+      val misses = cache_misses.sum
+      logInfo(cache_name + ": " + queries +
+        " queries, " + misses + " misses (hit rate %.3f), elements currently in cache: ".format(hitRate) +
         getApproximatePathsCacheSize + " , all path computations: " +
-        num_paths_computed)
+        num_paths_computed.sum + ", unreachable pairs: " +
+        getApproximateUnreachablePairsSize + " (" + unreachable_hits.sum + " hits), truncated searches: " +
+        truncated_searches.sum + ", prefetched: " + prefetch_computations.sum + ", backend: " +
+        pathsCache.statistics)
     }
+  }
 
+  def getShortestPath(start_link: Link, end_link: Link): Array[Link] = {
+    recordQuery("Single path cache")
+    val key = PathKey(start_link, end_link)
+    if (isKnownUnreachable(start_link, end_link)) {
+      unreachable_hits.increment()
+      return null
+    }
     getPathInCache(key) match {
       case Some(path) => path
-      case None => {
-        val path = path_gen.getShortestPath(start_link, end_link)
-        putPathInCache(key, path)
-        cache_misses += 1
-        path
+      case None => pathLoads(key) {
+        // Another thread may have completed the computation between the
+        // lookup and now.
+        getPathInCache(key) match {
+          case Some(path) => path
+          case None => {
+            val path = path_gen.getShortestPath(start_link, end_link)
+            // Null values cannot be stored in the cache.
+            if (path == null) {
+              markUnreachable(start_link, end_link)
+            } else {
+              putPathInCache(key, path)
+            }
+            cache_misses.increment()
+            path
+          }
+        }
       }
     }
   }
 
   def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
-    var print_info = false
-    var print_total_queries = 0
-    var print_cache_misses = 0
-    total_queries += 1
-    if (total_queries >= printMessageValue) {
-      print_info = true
-      print_total_queries = total_queries
-      print_cache_misses = cache_misses
-      total_queries = 0
-      cache_misses = 0
-    }
-    if (print_info) {
-      // We do not care about being slightly off here.
-      logInfo("Paths cache: " + print_total_queries + " queries, " +
-        print_cache_misses + " misses, elements currently in cache: " +
-        getApproximatePathsCacheSize + " , all path computations: " +
-        num_paths_computed)
-    }
+    getShortestPaths(start_link, end_link, max_num_paths, null)
+  }
 
+  /**
+   * The results of the searches truncated by the budget are not cached, and
+   * they are only returned to the request that ran the search: the
+   * concurrent requests for the same pair of links run their own search,
+   * within their own budget.
+   */
+  override def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
+    recordQuery("Paths cache")
     val key = PathKey(start_link, end_link)
+    if (isKnownUnreachable(start_link, end_link)) {
+      unreachable_hits.increment()
+      return Array.empty[Array[Link]]
+    }
     getPathsInCache(key) match {
       case Some(paths) => paths
-      case None => {
-        val paths = path_gen.getShortestPaths(start_link, end_link, max_num_paths)
-        putPathsInCache(key, paths)
-        cache_misses += 1
-        num_paths_computed += paths.length
-        paths
-      }
+      case None => pathsLoads.load(key, (res: (Array[Array[Link]], Boolean)) => res._2) {
+        // Another thread may have completed the computation between the
+        // lookup and now.
+        getPathsInCache(key) match {
+          case Some(paths) => (paths, true)
+          case None => {
+            cache_misses.increment()
+            computePaths(key, max_num_paths, budget)
+          }
+        }
+      }._1
+    }
+  }
+
+  /**
+   * Computes the paths and caches them, unless the search was truncated by
+   * the budget.
+   *
+   * @return the paths, and false if the search was truncated.
+   */
+  private[this] def computePaths(key: PathKey, max_num_paths: Int, budget: SearchBudget): (Array[Array[Link]], Boolean) = {
+    val truncated_before = if (budget == null) 0 else budget.numTruncated
+    val paths = path_gen.getShortestPaths(key.start_link, key.end_link, max_num_paths, budget)
+    val complete = budget == null || budget.numTruncated == truncated_before
+    if (!complete) {
+      truncated_searches.increment()
+    } else if (!(paths.isEmpty && markUnreachable(key.start_link, key.end_link))) {
+      putPathsInCache(key, paths)
+    }
+    num_paths_computed.add(paths.length)
+    (paths, complete)
+  }
+
+  /**
+   * Computes and caches the paths between two links in the background.
+   *
+   * Nothing is done if the paths are cached, known to be unreachable, or
+   * being computed by another thread. The computation does not register
+   * with the concurrent requests: the other threads never wait for a
+   * background computation, they compute the same paths instead.
+   *
+   * @return true if the paths were computed.
+   */
+  def prefetchShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Boolean = {
+    val key = PathKey(start_link, end_link)
+    if (isKnownUnreachable(start_link, end_link) || pathsLoads.isPending(key) || getPathsInCache(key).isDefined) {
+      false
+    } else {
+      prefetch_computations.increment()
+      computePaths(key, max_num_paths, budget)
+      true
     }
   }
 
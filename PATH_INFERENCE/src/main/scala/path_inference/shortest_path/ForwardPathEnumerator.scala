@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import collection.mutable.{ HashMap => MMap }
+import collection.mutable.PriorityQueue
+import collection.JavaConversions._
+import netconfig.Link
+
+/**
+ * Enumerates the paths starting from a link, by increasing distance.
+ *
+ * The distance of a path is the length of the links strictly between the
+ * first and the last link, i.e. the distance driven between the end of the
+ * start link and the beginning of the end link. Only the paths within
+ * max_distance are returned, and at most k paths are returned for each end
+ * link (the k shortest ones). The paths do not contain loops.
+ *
+ * The enumeration is lazy: the search only proceeds as far as the paths
+ * requested, and it can be resumed at any time to get the next paths.
+ * This class is not thread-safe.
+ */
+final class ForwardPathEnumerator(
+  val start_link: Link,
+  val k: Int,
+  val max_distance: Double) extends Iterator[(Array[Link], Double)] {
+
+  // The links of the path in reverse order, the distance of the path.
+  private[this]type PartialPath = (List[Link], Double)
+
+  private[this] val ordering = new Ordering[PartialPath] {
+    def compare(p1: PartialPath, p2: PartialPath): Int = {
+      math.signum(p2._2 - p1._2).toInt
+    }
+  }
+
+  private[this] val queue = new PriorityQueue[PartialPath]()(ordering)
+  queue += ((List(start_link), 0.0))
+
+  // Number of times each link has been reached.
+  private[this] val num_visits = MMap.empty[Link, Int]
+
+  private[this] var next_path: PartialPath = null
+
+  private[this] var num_popped = 0
+
+  /**
+   * The number of partial paths taken from the queue so far (a measure of the
+   * work done by the search).
+   */
+  def numExpansions: Int = num_popped
+
+  /**
+   * The number of paths ending with this link returned so far (or about to be
+   * returned by next()).
+   */
+  def numVisits(link: Link): Int = num_visits.getOrElse(link, 0)
+
+  private[this] def advance(): Unit = {
+    while (next_path == null && !queue.isEmpty) {
+      val p = queue.dequeue
+      num_popped += 1
+      val (links, dist) = p
+      val last_link = links.head
+      val count = num_visits.getOrElse(last_link, 0)
+      if (count < k) {
+        num_visits(last_link) = count + 1
+        // The start link does not count in the distance.
+        val next_dist = if (links.tail.isEmpty) dist else dist + last_link.length
+        if (next_dist <= max_distance) {
+          for (l <- last_link.outLinks if !links.contains(l)) {
+            queue += ((l :: links, next_dist))
+          }
+        }
+        next_path = p
+      }
+    }
+  }
+
+  def hasNext: Boolean = {
+    advance()
+    next_path != null
+  }
+
+  /**
+   * The next path (from the start link to the end link, included) and its
+   * distance.
+   */
+  def next(): (Array[Link], Double) = {
+    advance()
+    if (next_path == null) {
+      throw new NoSuchElementException
+    }
+    val (links, dist) = next_path
+    next_path = null
+    (links.reverse.toArray, dist)
+  }
+}
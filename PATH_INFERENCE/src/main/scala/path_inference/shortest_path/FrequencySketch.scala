@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+/**
+ * An approximate count of the recent accesses to each element (count-min
+ * sketch), used by the TinyLFU admission policy.
+ *
+ * Each element has 4 counters of 4 bits, packed into longs, and its estimated
+ * frequency is the minimum of these counters. All the counters are halved
+ * when the number of increments reaches 10 times the maximum size of the
+ * cache, so that the frequencies reflect the recent history.
+ *
+ * This class is not thread-safe.
+ *
+ * @param max_size the maximum size of the cache using this sketch
+ */
+final class FrequencySketch(max_size: Int) {
+
+  import FrequencySketch._
+
+  private[this] val table = {
+    var n = 16
+    while (n < max_size) {
+      n *= 2
+    }
+    new Array[Long](n)
+  }
+
+  private[this] val table_mask = table.length - 1
+
+  private[this] val sample_size = 10L * math.max(max_size, 1)
+
+  private[this] var num_increments = 0L
+
+  /**
+   * The estimated number of recent accesses to the element (at most 15).
+   */
+  def frequency(hash: Int): Int = {
+    val h = spread(hash)
+    val start = (h & 3) << 2
+    var freq = 15
+    var i = 0
+    while (i < 4) {
+      val idx = indexOf(h, i)
+      val offset = (start + i) << 2
+      freq = math.min(freq, ((table(idx) >>> offset) & 0xfL).toInt)
+      i += 1
+    }
+    freq
+  }
+
+  def increment(hash: Int): Unit = {
+    val h = spread(hash)
+    val start = (h & 3) << 2
+    var added = false
+    var i = 0
+    while (i < 4) {
+      val idx = indexOf(h, i)
+      val offset = (start + i) << 2
+      val mask = 0xfL << offset
+      if ((table(idx) & mask) != mask) {
+        table(idx) += 1L << offset
+        added = true
+      }
+      i += 1
+    }
+    if (added) {
+      num_increments += 1
+      if (num_increments >= sample_size) {
+        reset()
+      }
+    }
+  }
+
+  /**
+   * Halves all the counters.
+   */
+  private[this] def reset(): Unit = {
+    var i = 0
+    while (i < table.length) {
+      table(i) = (table(i) >>> 1) & RESET_MASK
+      i += 1
+    }
+    num_increments /= 2
+  }
+
+  private[this] def indexOf(h: Int, i: Int): Int = {
+    var x = (h + SEEDS(i)) * SEEDS(i)
+    x += x >>> 32
+    x.toInt & table_mask
+  }
+}
+
+object FrequencySketch {
+  private val SEEDS = Array(0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L)
+
+  private val RESET_MASK = 0x7777777777777777L
+
+  private def spread(x: Int): Int = {
+    var h = ((x >>> 16) ^ x) * 0x45d9f3b
+    h = ((h >>> 16) ^ h) * 0x45d9f3b
+    (h >>> 16) ^ h
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import collection.mutable.{ HashMap => MMap }
+import core_extensions.MMLogging
+import core_extensions.StripedCounter
+import netconfig.Link
+
+/**
+ * A path generator that returns the routes observed between two links in
+ * previous outputs of the filter, and only searches the graph (with the
+ * fallback generator) for the pairs of links that were not observed often
+ * enough.
+ *
+ * Most vehicles drive along the same corridors, so the good candidate paths
+ * between two links are usually among the routes already inferred. Only the
+ * routes seen at least min_support times are kept, which removes the
+ * occasional wrong inference.
+ *
+ * This generator does not cache the results of the fallback generator: wrap it
+ * in a [[path_inference.shortest_path.DefaultCachedPathGenerator]] for that.
+ * It is thread-safe if the fallback generator is.
+ *
+ * @param routes the observed routes for each pair of links, sorted by
+ *   decreasing support.
+ */
+class HistoricalPathGenerator(
+  private[this] val routes: Map[PathKey, Array[Array[Link]]],
+  val fallback: PathGenerator2) extends PathGenerator2 {
+
+  private[this] val num_hits = new StripedCounter
+  private[this] val num_fallbacks = new StripedCounter
+
+  /**
+   * The number of pairs of links with some observed routes.
+   */
+  def numPairs: Int = routes.size
+
+  /**
+   * The number of queries answered from the observed routes.
+   */
+  def numHits: Long = num_hits.sum
+
+  /**
+   * The number of queries sent to the fallback generator.
+   */
+  def numFallbacks: Long = num_fallbacks.sum
+
+  def getShortestPath(start_link: Link, end_link: Link): Array[Link] = {
+    routes.get(PathKey(start_link, end_link)) match {
+      case Some(paths) =>
+        num_hits.increment()
+        paths.minBy(path => path.map(_.length).sum)
+      case None =>
+        num_fallbacks.increment()
+        fallback.getShortestPath(start_link, end_link)
+    }
+  }
+
+  def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+    getShortestPaths(start_link, end_link, max_num_paths, null)
+  }
+
+  override def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
+    routes.get(PathKey(start_link, end_link)) match {
+      case Some(paths) =>
+        num_hits.increment()
+        paths.take(max_num_paths)
+      case None =>
+        num_fallbacks.increment()
+        fallback.getShortestPaths(start_link, end_link, max_num_paths, budget)
+    }
+  }
+
+  override def finalizeOperations(): Unit = {
+    fallback.finalizeOperations()
+  }
+}
+
+object HistoricalPathGenerator extends MMLogging {
+
+  /**
+   * Builds the index of the observed routes.
+   *
+   * @param observed_routes the sequences of links of the observed routes, see
+   *   [[path_inference.shortest_path.ObservedRoutes]].
+   * @param min_support the minimum number of observations of a route
+   * @param max_paths the maximum number of routes kept for each pair of links
+   * @param fallback the generator used for all the other pairs of links
+   */
+  def build(observed_routes: Iterator[Array[Link]],
+    min_support: Int,
+    max_paths: Int,
+    fallback: PathGenerator2): HistoricalPathGenerator = {
+    assert(min_support >= 1)
+    val counts = MMap.empty[PathKey, MMap[Seq[Link], Int]]
+    var num_routes = 0
+    // The routes that stay on the same link are skipped: the filter already
+    // adds the same-link path for these pairs (see VehicleFilter3), and a
+    // second copy would count its probability twice.
+    for (route <- observed_routes if route.length >= 2 && route.head != route.last) {
+      val key = PathKey(route.head, route.last)
+      val key_counts = counts.getOrElseUpdate(key, MMap.empty[Seq[Link], Int])
+      val seq: Seq[Link] = route
+      key_counts(seq) = key_counts.getOrElse(seq, 0) + 1
+      num_routes += 1
+    }
+    val routes = (for {
+      (key, key_counts) <- counts.iterator
+      paths = key_counts.toArray
+        .filter(_._2 >= min_support)
+        .sortBy(-_._2)
+        .take(max_paths)
+        .map(_._1.toArray)
+      if !paths.isEmpty
+    } yield (key, paths)).toMap
+    logInfo("Historical paths: %d routes, %d pairs of links kept out of %d" format (num_routes, routes.size, counts.size))
+    new HistoricalPathGenerator(routes, fallback)
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import collection.mutable.ArrayBuffer
+import collection.mutable.{ HashMap => MMap }
+import core.DistancePolicy
+import java.util.{ LinkedHashMap => JLinkedHashMap }
+import java.util.Map.Entry
+import netconfig.Link
+
+/**
+ * A path generator for a single vehicle, that keeps the search trees rooted at
+ * the last origin links and extends them for the next queries.
+ *
+ * With high frequency data, consecutive points of a vehicle are a few links
+ * apart, and the searches of the next point start from the same links as the
+ * searches of the previous point. The search from each origin link is a
+ * [[path_inference.shortest_path.ForwardPathEnumerator]] that is only
+ * advanced as far as needed, so the links already settled are never explored
+ * again. Each tree performs at most max_expansions expansions over its
+ * lifetime, and only keeps the paths to the end links that were queried.
+ *
+ * The pairs already in the cache of the fallback generator are read from it.
+ * The pairs of links further apart than max_distance (straight line), and the
+ * pairs a tree cannot answer, are sent to the fallback generator. A tree
+ * cannot answer when it went past the end link before the link was queried,
+ * when more than paths_per_link paths are requested, or when it finds fewer
+ * paths than requested (within its expansions and within max_travel): the
+ * results are then the same as the results of the fallback generator.
+ *
+ * This class is not thread-safe: use one instance per vehicle.
+ *
+ * @param max_origins the number of search trees kept (least recently used
+ *   trees are discarded).
+ * @param max_distance the maximum distance (straight line, meters) between
+ *   the links searched by the trees.
+ * @param max_travel the maximum driving distance (meters) of the paths
+ *   searched by the trees.
+ * @param paths_per_link the maximum number of paths found by the search trees
+ *   for each end link.
+ * @param max_expansions the maximum number of expansions of each search tree.
+ */
+class IncrementalPathSearch(
+  val fallback: PathGenerator2,
+  val max_origins: Int,
+  val max_distance: Double,
+  val max_travel: Double,
+  val paths_per_link: Int,
+  val max_expansions: Int) extends PathGenerator2 {
+
+  private[this] class SearchTree(start_link: Link) {
+    val enumerator = new ForwardPathEnumerator(start_link, paths_per_link, max_travel)
+    // The paths found so far, for the end links queried only.
+    val paths = MMap.empty[Link, ArrayBuffer[Array[Link]]]
+    // The expansions already charged to a budget.
+    private[this] var num_charged = 0
+
+    /**
+     * Extends the search until the end link is settled (num_paths paths are
+     * found for it), or until the search is exhausted.
+     *
+     * Returns None if the tree cannot answer: the end link was reached before
+     * it was queried (the paths were not kept), more paths are requested than
+     * the tree keeps, or the tree found fewer paths than requested. The budget
+     * is charged for each expansion, and the paths found so far are returned
+     * if it is exhausted.
+     */
+    def pathsTo(end_link: Link, num_paths: Int, budget: SearchBudget): Option[Array[Array[Link]]] = {
+      if (num_paths > paths_per_link) {
+        return None
+      }
+      if (!paths.contains(end_link)) {
+        if (enumerator.numVisits(end_link) > 0) {
+          return None
+        }
+        paths(end_link) = new ArrayBuffer[Array[Link]]
+      }
+      val ps = paths(end_link)
+      var truncated = budget != null && budget.exhausted
+      while (ps.length < num_paths && !truncated && enumerator.numExpansions < max_expansions && enumerator.hasNext) {
+        val (path, dist) = enumerator.next()
+        if (path.length > 1) {
+          paths.get(path.last) match {
+            case Some(buffer) => buffer += path
+            case None =>
+          }
+        }
+        if (budget != null) {
+          while (num_charged < enumerator.numExpansions) {
+            budget.spend()
+            num_charged += 1
+          }
+          truncated = budget.exhausted
+        }
+      }
+      if (ps.length < num_paths && truncated) {
+        budget.markTruncated()
+        Some(ps.toArray)
+      } else if (ps.length < num_paths) {
+        // Out of expansions, or no more paths within max_travel: a search
+        // with the bounds of the fallback generator may find more.
+        None
+      } else {
+        Some(ps.take(num_paths).toArray)
+      }
+    }
+  }
+
+  private[this] val trees = new JLinkedHashMap[Link, SearchTree](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: Entry[Link, SearchTree]): Boolean = {
+      this.size() > max_origins
+    }
+  }
+
+  private[this] var num_reused = 0L
+  private[this] var num_searches = 0L
+
+  /**
+   * The number of queries answered by a search tree created for a previous
+   * query.
+   */
+  def numReused: Long = num_reused
+
+  /**
+   * The number of queries answered by a search tree.
+   */
+  def numSearches: Long = num_searches
+
+  private[this] def withinDistance(start_link: Link, end_link: Link): Boolean = {
+    val gap = DistancePolicy.distanceInMeters(DistancePolicy.Site.PATH_SEARCH,
+      start_link.geoMultiLine.getLastCoordinate, end_link.geoMultiLine.getFirstCoordinate)
+    gap <= max_distance
+  }
+
+  private[this] def pathsInCache(start_link: Link, end_link: Link): Option[Array[Array[Link]]] = {
+    fallback match {
+      case cached: DefaultCachedPathGenerator =>
+        cached.getPathsInCache(PathKey(start_link, end_link))
+      case _ => None
+    }
+  }
+
+  def getShortestPath(start_link: Link, end_link: Link): Array[Link] = {
+    val paths = getShortestPaths(start_link, end_link, 1)
+    if (paths.length == 1)
+      paths(0)
+    else
+      null
+  }
+
+  def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+    getShortestPaths(start_link, end_link, max_num_paths, null)
+  }
+
+  override def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
+    if (start_link == end_link || !withinDistance(start_link, end_link)) {
+      return fallback.getShortestPaths(start_link, end_link, max_num_paths, budget)
+    }
+    pathsInCache(start_link, end_link) match {
+      case Some(paths) => return paths.take(max_num_paths)
+      case None =>
+    }
+    val reused = trees.containsKey(start_link)
+    if (!reused) {
+      trees.put(start_link, new SearchTree(start_link))
+    }
+    trees.get(start_link).pathsTo(end_link, max_num_paths, budget) match {
+      case Some(paths) =>
+        num_searches += 1
+        if (reused) {
+          num_reused += 1
+        }
+        paths
+      case None =>
+        fallback.getShortestPaths(start_link, end_link, max_num_paths, budget)
+    }
+  }
+
+  override def finalizeOperations(): Unit = {
+    trees.clear()
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.util.concurrent.ConcurrentHashMap
+import netconfig.Link
+
+/**
+ * Assigns dense integer identifiers to links, in the order in which they are
+ * first seen.
+ *
+ * The [[netconfig.Link]] interface does not expose any numerical identifier,
+ * which the compact path caches need. The identifiers are only valid for the
+ * lifetime of this object.
+ *
+ * This class is thread-safe. Looking up a link that is already registered does
+ * not lock.
+ */
+final class LinkIndex {
+
+  private[this] val ids = new ConcurrentHashMap[Link, java.lang.Integer]()
+
+  @volatile private[this] var links = new Array[Link](1024)
+
+  private[this] var num_links = 0
+
+  /**
+   * Returns the identifier of the link, registering it if necessary.
+   */
+  def id(link: Link): Int = {
+    val x = ids.get(link)
+    if (x != null) {
+      x.intValue
+    } else {
+      register(link)
+    }
+  }
+
+  /**
+   * Returns the identifier of the link, or -1 if the link was never registered.
+   */
+  def idIfPresent(link: Link): Int = {
+    val x = ids.get(link)
+    if (x != null) {
+      x.intValue
+    } else {
+      -1
+    }
+  }
+
+  /**
+   * The link corresponding to an identifier returned by this object.
+   */
+  def link(id: Int): Link = links(id)
+
+  def size: Int = ids.size
+
+  private[this] def register(link: Link): Int = synchronized {
+    val x = ids.get(link)
+    if (x != null) {
+      x.intValue
+    } else {
+      if (num_links == links.length) {
+        val new_links = new Array[Link](2 * num_links)
+        System.arraycopy(links, 0, new_links, 0, num_links)
+        links = new_links
+      }
+      val new_id = num_links
+      links(new_id) = link
+      num_links += 1
+      // Publish the link last, so that concurrent readers always see a
+      // populated array.
+      ids.put(link, new_id)
+      new_id
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import collection.JavaConversions._
+import netconfig.Datum.PathInference
+import netconfig.Datum.RouteTT
+import netconfig.Link
+
+/**
+ * Extracts the sequences of links from the output of previous runs of the
+ * filter.
+ *
+ * Each route of a path inference object connects two consecutive points of a
+ * vehicle, and its sequence of links is one of the paths that was found
+ * between the first and the last link.
+ */
+object ObservedRoutes {
+
+  /**
+   * All the link sequences of all the routes in the path inferences.
+   */
+  def fromPathInferences(pis: Iterator[PathInference[Link]]): Iterator[Array[Link]] = {
+    pis.flatMap(pi => pi.routes.iterator.map(_.links.toSeq.toArray)).filter(!_.isEmpty)
+  }
+
+  /**
+   * The link sequences of the routes (most likely routes only).
+   */
+  def fromRouteTTs(rtts: Iterator[RouteTT[Link]]): Iterator[Array[Link]] = {
+    rtts.map(_.route.links.toSeq.toArray).filter(!_.isEmpty)
+  }
+}
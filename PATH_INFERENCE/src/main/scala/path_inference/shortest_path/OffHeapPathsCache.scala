@@ -0,0 +1,304 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.nio.ByteBuffer
+import java.nio.IntBuffer
+import java.nio.LongBuffer
+import netconfig.Link
+import core_extensions.MMLogging
+
+/**
+ * A paths cache stored outside the java heap.
+ *
+ * Each element of the cache is stored as a record of packed integers in a
+ * direct buffer:
+ * {{{
+ *   start_id, end_id, num_paths, (path_length, link_id * path_length) * num_paths
+ * }}}
+ * where the link ids are the dense identifiers given by a
+ * [[path_inference.shortest_path.LinkIndex]]. The records are appended to a
+ * circular log, and the oldest records are evicted when the log is full or
+ * when the maximum number of elements is reached (FIFO eviction).
+ *
+ * The records are located through an open-addressing hash table (linear
+ * probing, also stored in direct buffers) keyed by the pair of link ids.
+ *
+ * A path of n links uses 4(n+1) bytes, plus 12 bytes per element for the
+ * index, which is several times smaller than the java objects stored in a
+ * Guava cache. More importantly, the garbage collector never scans this
+ * memory.
+ *
+ * All the operations are synchronized.
+ *
+ * @param link_index the identifiers of the links
+ * @param max_size the maximum number of elements in the cache
+ * @param data_size_mb the size of the buffer storing the paths, in megabytes
+ */
+final class OffHeapPathsCache(
+  private[this] val link_index: LinkIndex,
+  max_size: Int,
+  data_size_mb: Int) extends PathCacheBackend[Array[Array[Link]]] with MMLogging {
+
+  import OffHeapPathsCache._
+
+  assert(max_size > 0)
+  assert(data_size_mb > 0)
+
+  /**
+   * The number of slots in the hash table, a power of 2 with a load factor
+   * below 0.75.
+   */
+  private[this] val num_slots = {
+    var n = 16
+    while (n < max_size.toLong * 4 / 3 + 1) {
+      n *= 2
+    }
+    n
+  }
+  private[this] val mask = num_slots - 1
+
+  private[this] val keys: LongBuffer = ByteBuffer.allocateDirect(8 * num_slots).asLongBuffer()
+  private[this] val offsets: IntBuffer = ByteBuffer.allocateDirect(4 * num_slots).asIntBuffer()
+
+  /**
+   * The capacity of the log (in integers).
+   */
+  private[this] val capacity: Int = {
+    val ints = data_size_mb.toLong * 1024 * 1024 / 4
+    math.min(ints, Int.MaxValue / 4).toInt
+  }
+  private[this] val data: IntBuffer = ByteBuffer.allocateDirect(4 * capacity).asIntBuffer()
+
+  // The position of the oldest record in the log.
+  private[this] var tail = 0
+  // The position where the next record will be written.
+  private[this] var head = 0
+  // True if the log wraps around the end of the buffer, i.e. head < tail.
+  private[this] var wrapped = false
+  // The number of records in the log, some of them may be outdated.
+  private[this] var num_records = 0
+  // The number of elements in the hash table.
+  private[this] var num_elements = 0
+
+  {
+    var i = 0
+    while (i < num_slots) {
+      keys.put(i, EMPTY)
+      i += 1
+    }
+    logInfo("Off-heap paths cache: %d slots, %d MB of data" format (num_slots, data_size_mb))
+  }
+
+  def get(key: PathKey): Option[Array[Array[Link]]] = {
+    val start_id = link_index.idIfPresent(key.start_link)
+    val end_id = link_index.idIfPresent(key.end_link)
+    if (start_id < 0 || end_id < 0) {
+      None
+    } else {
+      read(packKey(start_id, end_id))
+    }
+  }
+
+  def put(key: PathKey, paths: Array[Array[Link]]): Unit = {
+    val start_id = link_index.id(key.start_link)
+    val end_id = link_index.id(key.end_link)
+    val ids = paths.map(_.map(link_index.id _))
+    write(packKey(start_id, end_id), start_id, end_id, ids)
+  }
+
+  def size: Long = synchronized { num_elements }
+
+  private[this] def read(key: Long): Option[Array[Array[Link]]] = synchronized {
+    val slot = findSlot(key)
+    if (slot < 0) {
+      None
+    } else {
+      var pos = offsets.get(slot) + 2
+      val num_paths = data.get(pos)
+      pos += 1
+      val paths = new Array[Array[Link]](num_paths)
+      var i = 0
+      while (i < num_paths) {
+        val n = data.get(pos)
+        pos += 1
+        val path = new Array[Link](n)
+        var j = 0
+        while (j < n) {
+          path(j) = link_index.link(data.get(pos))
+          pos += 1
+          j += 1
+        }
+        paths(i) = path
+        i += 1
+      }
+      Some(paths)
+    }
+  }
+
+  private[this] def write(key: Long, start_id: Int, end_id: Int, paths: Array[Array[Int]]): Unit = synchronized {
+    val record_size = 3 + paths.map(_.length + 1).sum
+    if (record_size > capacity) {
+      logWarning("Record too large for the off-heap cache: " + record_size)
+    } else {
+      while (num_records > 0 && num_elements >= max_size) {
+        evictOldest()
+      }
+      val pos = reserve(record_size)
+      data.put(pos, start_id)
+      data.put(pos + 1, end_id)
+      data.put(pos + 2, paths.length)
+      var p = pos + 3
+      for (path <- paths) {
+        data.put(p, path.length)
+        p += 1
+        for (id <- path) {
+          data.put(p, id)
+          p += 1
+        }
+      }
+      head = pos + record_size
+      num_records += 1
+      insert(key, pos)
+    }
+  }
+
+  /**
+   * Finds a position in the log where a record of the given size can be
+   * written, evicting the oldest records if necessary.
+   */
+  private[this] def reserve(record_size: Int): Int = {
+    var done = false
+    while (!done) {
+      if (num_records == 0) {
+        head = 0
+        tail = 0
+        wrapped = false
+      }
+      if (!wrapped) {
+        // Live records are in [tail, head)
+        if (head + record_size <= capacity) {
+          done = true
+        } else if (record_size <= tail) {
+          // Skip the end of the buffer and start again from the beginning.
+          if (head < capacity) {
+            data.put(head, WRAP)
+          }
+          head = 0
+          wrapped = true
+          done = true
+        } else {
+          evictOldest()
+        }
+      } else {
+        // Live records are in [tail, end of buffer) and [0, head)
+        if (head + record_size <= tail) {
+          done = true
+        } else {
+          evictOldest()
+        }
+      }
+    }
+    head
+  }
+
+  private[this] def evictOldest(): Unit = {
+    val start_id = data.get(tail)
+    val end_id = data.get(tail + 1)
+    val num_paths = data.get(tail + 2)
+    var record_size = 3
+    var i = 0
+    while (i < num_paths) {
+      record_size += data.get(tail + record_size) + 1
+      i += 1
+    }
+    // The key may have been overwritten by a more recent record.
+    val slot = findSlot(packKey(start_id, end_id))
+    if (slot >= 0 && offsets.get(slot) == tail) {
+      removeSlot(slot)
+    }
+    tail += record_size
+    num_records -= 1
+    if (wrapped && (tail >= capacity || data.get(tail) == WRAP)) {
+      tail = 0
+      wrapped = false
+    }
+  }
+
+  private[this] def findSlot(key: Long): Int = {
+    var i = hash(key) & mask
+    var k = keys.get(i)
+    while (k != EMPTY) {
+      if (k == key) {
+        return i
+      }
+      i = (i + 1) & mask
+      k = keys.get(i)
+    }
+    -1
+  }
+
+  private[this] def insert(key: Long, offset: Int): Unit = {
+    var i = hash(key) & mask
+    var k = keys.get(i)
+    while (k != EMPTY && k != key) {
+      i = (i + 1) & mask
+      k = keys.get(i)
+    }
+    if (k == EMPTY) {
+      num_elements += 1
+    }
+    keys.put(i, key)
+    offsets.put(i, offset)
+  }
+
+  /**
+   * Removes an element from the hash table, shifting back the following
+   * elements of the probe sequence (no tombstones).
+   */
+  private[this] def removeSlot(slot: Int): Unit = {
+    var hole = slot
+    var j = (slot + 1) & mask
+    var k = keys.get(j)
+    while (k != EMPTY) {
+      val home = hash(k) & mask
+      if (((j - home) & mask) >= ((j - hole) & mask)) {
+        keys.put(hole, k)
+        offsets.put(hole, offsets.get(j))
+        hole = j
+      }
+      j = (j + 1) & mask
+      k = keys.get(j)
+    }
+    keys.put(hole, EMPTY)
+    num_elements -= 1
+  }
+}
+
+object OffHeapPathsCache {
+  private val EMPTY = -1L
+
+  private val WRAP = -1
+
+  private def packKey(start_id: Int, end_id: Int): Long =
+    (start_id.toLong << 32) | (end_id.toLong & 0xffffffffL)
+
+  private def hash(key: Long): Int = {
+    val h = key * 0x9E3779B97F4A7C15L
+    (h ^ (h >>> 32)).toInt
+  }
+}
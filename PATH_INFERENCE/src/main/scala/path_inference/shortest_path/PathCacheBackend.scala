@@ -0,0 +1,89 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import netconfig.NetconfigException
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.Cache
+
+/**
+ * The storage used by [[path_inference.shortest_path.DefaultCachedPathGenerator]]
+ * to keep the paths computed so far.
+ *
+ * Implementations must be thread-safe, and are free to evict any element at
+ * any time.
+ */
+trait PathCacheBackend[V] {
+
+  def get(key: PathKey): Option[V]
+
+  def put(key: PathKey, value: V): Unit
+
+  /**
+   * Records accesses to elements that were answered by a cache in front of
+   * this backend (see [[path_inference.shortest_path.TwoLevelPathCacheBackend]]),
+   * for the backends whose eviction policy depends on the frequency of the
+   * accesses.
+   *
+   * @param keys the first n elements are the keys accessed.
+   */
+  def recordAccesses(keys: Array[PathKey], n: Int): Unit = {}
+
+  /**
+   * The approximate number of elements currently stored.
+   */
+  def size: Long
+
+  /**
+   * A short description of the state of the backend, for logging.
+   */
+  def statistics: String = "%d elements" format size
+}
+
+object PathCacheBackend {
+  /**
+   * Creates a backend on the java heap with the given eviction policy.
+   */
+  def create[V <: AnyRef](policy: CachePolicy.Value, max_size: Int): PathCacheBackend[V] = policy match {
+    case CachePolicy.LRU => new GuavaPathCacheBackend[V](max_size)
+    case CachePolicy.TinyLFU => new TinyLfuPathCacheBackend[V](max_size)
+    case p => throw new NetconfigException(null, "Missing cache policy:" + p)
+  }
+}
+
+/**
+ * Default backend: a Guava cache with a LRU eviction policy.
+ */
+final class GuavaPathCacheBackend[V <: AnyRef](max_size: Int) extends PathCacheBackend[V] {
+
+  private[this] val cache: Cache[PathKey, V] = (CacheBuilder.newBuilder()).maximumSize(max_size).build()
+
+  def get(key: PathKey): Option[V] = {
+    val res = cache.getIfPresent(key)
+    if (res == null) {
+      None
+    } else {
+      Some(res)
+    }
+  }
+
+  def put(key: PathKey, value: V): Unit = {
+    cache.put(key, value)
+  }
+
+  def size: Long = cache.size
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import collection.mutable.{ HashMap => MMap }
+import core_extensions.MMLogging
+import netconfig.Link
+
+/**
+ * Preloads the paths cache with the routes seen in previous outputs of the
+ * filter.
+ *
+ * The routes are grouped by pair of links (first and last link of each
+ * route), and the pairs are ranked by decreasing number of observations. For
+ * the most frequent pairs, the distinct routes observed (the most frequent
+ * first, at most max_num_paths) are inserted in the cache directly, without
+ * any path search. The pairs already in the cache are left unchanged.
+ *
+ * The paths of the filter between the warmed up pairs are the observed
+ * routes, instead of the result of the path search.
+ *
+ * @param path_gen the cached path generator to warm up
+ * @param max_num_paths the number of paths requested by the filter
+ *   (maxPaths in the parameters)
+ * @param max_pairs the maximum number of pairs to load, usually the size of the
+ *   cache
+ */
+class PathCacheWarmer(
+  val path_gen: DefaultCachedPathGenerator,
+  val max_num_paths: Int,
+  val max_pairs: Int) extends MMLogging {
+
+  /**
+   * Inserts the observed routes of the most frequent pairs of links.
+   *
+   * @return the number of pairs loaded
+   */
+  def warmUp(routes: Iterator[Array[Link]]): Int = {
+    // For each pair, the number of observations of each distinct route.
+    val counts = MMap.empty[PathKey, MMap[Seq[Link], Int]]
+    var num_routes = 0
+    // The routes on a single link are not paths between two links.
+    for (route <- routes if route.length > 1) {
+      val key = PathKey(route.head, route.last)
+      val route_counts = counts.getOrElseUpdate(key, MMap.empty[Seq[Link], Int])
+      val seq = route.toSeq
+      route_counts(seq) = route_counts.getOrElse(seq, 0) + 1
+      num_routes += 1
+    }
+    logInfo("Cache warm-up: %d routes, %d distinct pairs of links" format (num_routes, counts.size))
+    val pairs = counts.toArray.sortBy(-_._2.values.sum).take(max_pairs)
+    var num_loaded = 0
+    for ((key, route_counts) <- pairs if path_gen.getPathsInCache(key).isEmpty) {
+      val paths = route_counts.toArray.sortBy(-_._2).take(max_num_paths).map(_._1.toArray)
+      path_gen.putPathsInCache(key, paths)
+      num_loaded += 1
+      if (num_loaded % 100000 == 0) {
+        logInfo("Cache warm-up: %d/%d pairs loaded" format (num_loaded, pairs.length))
+      }
+    }
+    logInfo("Cache warm-up: done, %d pairs loaded" format num_loaded)
+    num_loaded
+  }
+}
@@ -47,6 +47,20 @@ trait PathGenerator2 {
    * fixme Should not depend on max_num_paths, put this value in the config instead.
    */
   def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]]
+
+  /**
+   * Same as above, with a limit on the work done by the search.
+   *
+   * The searches that stop because of the budget record it in the budget
+   * (see SearchBudget.markTruncated). The default implementation ignores the
+   * budget.
+   *
+   * @param budget the budget, or null for no limit
+   */
+  def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
+    getShortestPaths(start_link, end_link, max_num_paths)
+  }
+
   /**
    * A signal for caches that need to perform some final operations before being
    * discarded.
@@ -62,7 +76,37 @@ trait PathGenerator2 {
  */
 object PathGenerator2 {
   def getDefaultPathGenerator(parameters: PathInferenceParameters2): PathGenerator2 = {
+    getCachedPathGenerator(parameters, getDefaultSearch(parameters))
+  }
+
+  /**
+   * The path search used by the default path generator, without any cache.
+   */
+  def getDefaultSearch(parameters: PathInferenceParameters2): PathGenerator2 = {
     val max_distance_meters = 2400
-    new DefaultCachedPathGenerator(new AStar2(parameters.maxSearchDepth, max_distance_meters), path_cache_size=parameters.pathsCacheSize)
+    new AStar2(parameters.maxSearchDepth, max_distance_meters)
+  }
+
+  /**
+   * Puts the caches described in the parameters in front of a path generator.
+   */
+  def getCachedPathGenerator(parameters: PathInferenceParameters2, path_gen: PathGenerator2): PathGenerator2 = {
+    val link_index = new LinkIndex
+    val l2_backend: PathCacheBackend[Array[Array[Link]]] = if (parameters.pathsCacheOffHeapSize > 0) {
+      new OffHeapPathsCache(link_index, parameters.pathsCacheSize, parameters.pathsCacheOffHeapSize)
+    } else {
+      PathCacheBackend.create[Array[Array[Link]]](parameters.pathsCachePolicy, parameters.pathsCacheSize)
+    }
+    val paths_cache_backend = if (parameters.pathsCacheL1Size > 0) {
+      new TwoLevelPathCacheBackend(l2_backend, parameters.pathsCacheL1Size)
+    } else {
+      l2_backend
+    }
+    new DefaultCachedPathGenerator(path_gen,
+      path_cache_size = parameters.pathsCacheSize,
+      paths_cache_backend = paths_cache_backend,
+      unreachable_pairs_size = parameters.unreachablePairsCacheSize,
+      link_index = link_index,
+      path_cache_backend = PathCacheBackend.create[Array[Link]](parameters.pathsCachePolicy, parameters.pathsCacheSize))
   }
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import collection.mutable.{ HashSet => MHashSet }
+import core_extensions.MMLogging
+import netconfig.Link
+
+/**
+ * Computes in the background the paths starting from the candidate links of
+ * the last point of each vehicle, so that they are in the cache when the next
+ * point arrives.
+ *
+ * The paths are computed towards all the links within max_distance of the
+ * max_start_links first candidate links, with a budget of max_expansions
+ * expansions per request. The pairs already cached or being computed by a
+ * filter are skipped, and the filters never wait for the background
+ * computations (see DefaultCachedPathGenerator.prefetchShortestPaths). The
+ * work runs on daemon threads with a bounded queue: submitting never blocks,
+ * and the oldest requests are dropped when the queue is full. A new request
+ * for a vehicle cancels the previous request of the same vehicle, which is
+ * obsolete.
+ *
+ * @param path_gen the shared path generator, which caches the results
+ * @param max_num_paths the number of paths requested by the filter
+ *   (maxPaths in the parameters)
+ * @param max_start_links the number of candidate links of each request for
+ *   which the paths are computed (the first ones)
+ * @param max_expansions the maximum number of expansions of each request
+ *   (0 for no limit)
+ */
+class PathPrefetcher(
+  val path_gen: DefaultCachedPathGenerator,
+  val max_num_paths: Int,
+  val max_distance: Double,
+  num_threads: Int,
+  val max_start_links: Int = 3,
+  val max_expansions: Int = 2000,
+  queue_size: Int = 1000) extends MMLogging {
+
+  private[this] class PrefetchTask(val vehicle_id: String, links: Seq[Link]) extends Runnable {
+    @volatile var cancelled = false
+
+    def run(): Unit = {
+      val budget = new SearchBudget(max_expansions, 0)
+      try {
+        for (start_link <- links if !cancelled && !budget.exhausted) {
+          val ends = MHashSet.empty[Link]
+          val enumerator = new ForwardPathEnumerator(start_link, 1, max_distance)
+          for ((path, dist) <- enumerator) {
+            ends += path.last
+          }
+          for (i <- 0 until enumerator.numExpansions) {
+            budget.spend()
+          }
+          for (end_link <- ends if !cancelled && !budget.exhausted && end_link != start_link) {
+            if (path_gen.prefetchShortestPaths(start_link, end_link, max_num_paths, budget)) {
+              num_pairs.incrementAndGet()
+            }
+          }
+        }
+      } catch {
+        case e: Exception => logError("Path prefetching failed", e)
+      } finally {
+        if (vehicle_id != null) {
+          tasks.remove(vehicle_id, this)
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the oldest request when the queue is full.
+   */
+  private[this] class DropOldestPolicy extends RejectedExecutionHandler {
+    def rejectedExecution(r: Runnable, e: ThreadPoolExecutor): Unit = {
+      if (!e.isShutdown) {
+        e.getQueue.poll() match {
+          case task: PrefetchTask => {
+            task.cancelled = true
+            if (task.vehicle_id != null) {
+              tasks.remove(task.vehicle_id, task)
+            }
+            num_dropped.incrementAndGet()
+          }
+          case _ =>
+        }
+        e.execute(r)
+      }
+    }
+  }
+
+  private[this] val num_pairs = new AtomicLong(0)
+  private[this] val num_cancelled = new AtomicLong(0)
+  private[this] val num_dropped = new AtomicLong(0)
+
+  // The current task of each vehicle.
+  private[this] val tasks = new ConcurrentHashMap[String, PrefetchTask]
+
+  private[this] val executor = new ThreadPoolExecutor(num_threads, num_threads,
+    0L, TimeUnit.MILLISECONDS,
+    new ArrayBlockingQueue[Runnable](queue_size),
+    new ThreadFactory {
+      def newThread(r: Runnable): Thread = {
+        val t = new Thread(r, "path-prefetcher")
+        t.setDaemon(true)
+        t.setPriority(Thread.MIN_PRIORITY)
+        t
+      }
+    },
+    new DropOldestPolicy)
+
+  /**
+   * The number of pairs of links computed so far.
+   */
+  def numPrefetchedPairs: Long = num_pairs.get
+
+  /**
+   * The number of requests cancelled by a more recent request.
+   */
+  def numCancelled: Long = num_cancelled.get
+
+  /**
+   * The number of requests dropped because the queue was full.
+   */
+  def numDropped: Long = num_dropped.get
+
+  /**
+   * Requests the paths starting from these links, for this vehicle.
+   *
+   * The most likely links should come first. Returns immediately.
+   */
+  def prefetch(vehicle_id: String, links: Seq[Link]): Unit = {
+    val task = new PrefetchTask(vehicle_id, links.take(max_start_links))
+    if (vehicle_id != null) {
+      cancelTask(tasks.put(vehicle_id, task))
+    }
+    executor.execute(task)
+  }
+
+  /**
+   * Cancels the pending request of a vehicle, if any.
+   */
+  def cancel(vehicle_id: String): Unit = {
+    if (vehicle_id != null) {
+      cancelTask(tasks.remove(vehicle_id))
+    }
+  }
+
+  private[this] def cancelTask(task: PrefetchTask): Unit = {
+    if (task != null) {
+      task.cancelled = true
+      // Frees its place in the queue if it has not started yet.
+      executor.remove(task)
+      num_cancelled.incrementAndGet()
+    }
+  }
+
+  /**
+   * Cancels all the requests and stops the threads.
+   */
+  def shutdown(): Unit = {
+    val it = tasks.values.iterator
+    while (it.hasNext) {
+      it.next().cancelled = true
+    }
+    tasks.clear()
+    executor.getQueue.clear()
+    executor.shutdown()
+    logInfo("Path prefetcher: %d pairs prefetched, %d requests cancelled, %d requests dropped" format (numPrefetchedPairs, numCancelled, numDropped))
+  }
+}
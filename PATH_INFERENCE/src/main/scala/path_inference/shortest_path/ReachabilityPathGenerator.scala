@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import core_extensions.StripedCounter
+import netconfig.Link
+
+/**
+ * A path generator that reads the paths from a precomputed
+ * [[path_inference.shortest_path.ReachabilityTable]], and only uses the
+ * fallback generator for the pairs of links beyond the distance bound of the
+ * table.
+ *
+ * Put it in front of the cached path generator: the lookups in the table are
+ * cheaper than the lookups in the caches.
+ */
+class ReachabilityPathGenerator(
+  val table: ReachabilityTable,
+  val fallback: PathGenerator2) extends PathGenerator2 {
+
+  private[this] val num_hits = new StripedCounter
+  private[this] val num_fallbacks = new StripedCounter
+
+  /**
+   * The number of queries answered by the table.
+   */
+  def numHits: Long = num_hits.sum
+
+  /**
+   * The number of queries sent to the fallback generator.
+   */
+  def numFallbacks: Long = num_fallbacks.sum
+
+  def getShortestPath(start_link: Link, end_link: Link): Array[Link] = {
+    table.get(start_link, end_link) match {
+      case Some(paths) if !paths.isEmpty =>
+        num_hits.increment()
+        paths(0)
+      case _ =>
+        num_fallbacks.increment()
+        fallback.getShortestPath(start_link, end_link)
+    }
+  }
+
+  def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+    getShortestPaths(start_link, end_link, max_num_paths, null)
+  }
+
+  override def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
+    table.get(start_link, end_link) match {
+      case Some(paths) =>
+        num_hits.increment()
+        paths.take(max_num_paths)
+      case None =>
+        num_fallbacks.increment()
+        fallback.getShortestPaths(start_link, end_link, max_num_paths, budget)
+    }
+  }
+
+  override def finalizeOperations(): Unit = {
+    fallback.finalizeOperations()
+  }
+}
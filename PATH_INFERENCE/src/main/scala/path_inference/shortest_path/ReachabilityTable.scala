@@ -0,0 +1,249 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel.MapMode
+import java.nio.IntBuffer
+import java.nio.LongBuffer
+import collection.mutable.ArrayBuffer
+import collection.mutable.{ HashMap => MMap }
+import core_extensions.MMLogging
+import netconfig.Link
+import netconfig.NetconfigException
+
+/**
+ * A precomputed table of the k shortest paths between each link and all the
+ * links reachable within a distance bound, stored in a memory-mapped file.
+ *
+ * The links are identified by their position in the sequence of links given
+ * when building and opening the table, so this sequence must be the same
+ * (for example the links of the network sorted by id).
+ *
+ * Layout of the file (big endian):
+ *  - header: magic, version, number of links, k (ints), max distance
+ *    (double), position of the index (long)
+ *  - one block of ints per start link, never straddling a chunk boundary:
+ *    n, the n sorted ids of the reachable links, n+1 offsets of the paths
+ *    in the block, then for each reachable link the number of paths and each
+ *    path (length, then link ids).
+ *  - the index: the position of each block (num_links longs).
+ *
+ * Lookups are a binary search in the block of the start link, and do not
+ * allocate anything but the returned paths. This class is thread-safe.
+ */
+final class ReachabilityTable private (
+  private[this] val links: IndexedSeq[Link],
+  private[this] val link_ids: Map[Link, Int],
+  val k: Int,
+  val max_distance: Double,
+  private[this] val index: LongBuffer,
+  private[this] val data_start: Long,
+  private[this] val chunks: Array[IntBuffer]) {
+
+  import ReachabilityTable._
+
+  /**
+   * The paths between the two links, by increasing distance, or None if the
+   * end link cannot be reached within max_distance (or if one of the links is
+   * not in the table).
+   */
+  def get(start_link: Link, end_link: Link): Option[Array[Array[Link]]] = {
+    (link_ids.get(start_link), link_ids.get(end_link)) match {
+      case (Some(start_id), Some(end_id)) => getById(start_id, end_id)
+      case _ => None
+    }
+  }
+
+  /**
+   * True if the table knows all the paths starting from this link.
+   */
+  def contains(start_link: Link): Boolean = link_ids.contains(start_link)
+
+  private[this] def getById(start_id: Int, end_id: Int): Option[Array[Array[Link]]] = {
+    val pos = index.get(start_id) - data_start
+    val chunk = chunks((pos / CHUNK_BYTES).toInt)
+    val block = ((pos % CHUNK_BYTES) / 4).toInt
+    val n = chunk.get(block)
+    // Binary search of the end link.
+    var lo = 0
+    var hi = n - 1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      val id = chunk.get(block + 1 + mid)
+      if (id < end_id) {
+        lo = mid + 1
+      } else if (id > end_id) {
+        hi = mid - 1
+      } else {
+        var p = block + chunk.get(block + 1 + n + mid)
+        val num_paths = chunk.get(p)
+        p += 1
+        val res = new Array[Array[Link]](num_paths)
+        for (i <- 0 until num_paths) {
+          val len = chunk.get(p)
+          p += 1
+          val path = new Array[Link](len)
+          for (j <- 0 until len) {
+            path(j) = links(chunk.get(p + j))
+          }
+          p += len
+          res(i) = path
+        }
+        return Some(res)
+      }
+    }
+    None
+  }
+}
+
+object ReachabilityTable extends MMLogging {
+
+  private val MAGIC = 0x52454143
+  private val VERSION = 1
+  private val HEADER_BYTES = 4 * 4 + 8 + 8
+  // Each chunk is mapped separately, as a mapping cannot exceed 2GB.
+  private val CHUNK_BYTES = 1L << 30
+  // Number of start links processed in parallel by the builder.
+  private val BATCH_SIZE = 1024
+
+  /**
+   * Computes the table and writes it to a file.
+   *
+   * @param links all the links of the network, in a fixed order
+   * @param k the maximum number of paths stored for each pair of links
+   * @param max_distance the distance bound (meters)
+   */
+  def build(links: IndexedSeq[Link], k: Int, max_distance: Double, fname: String): Unit = {
+    val link_ids = Map.empty[Link, Int] ++ links.zipWithIndex
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)))
+    var pos = 0L
+    def writeInt(x: Int): Unit = {
+      out.writeInt(x)
+      pos += 4
+    }
+    // Placeholder for the header, written at the end.
+    for (i <- 0 until HEADER_BYTES) {
+      out.writeByte(0)
+    }
+    pos = HEADER_BYTES
+    val data_start = pos
+    val positions = new Array[Long](links.size)
+    for (batch_start <- 0 until links.size by BATCH_SIZE) {
+      val batch = batch_start until math.min(links.size, batch_start + BATCH_SIZE)
+      val blocks = batch.par.map(i => block(links(i), link_ids, k, max_distance)).seq
+      for ((block, i) <- blocks.zip(batch)) {
+        if (4L * block.length > CHUNK_BYTES) {
+          throw new NetconfigException(null, "The paths from link %s do not fit in a chunk" format links(i))
+        }
+        // Blocks do not straddle the chunks.
+        val chunk_end = data_start + ((pos - data_start) / CHUNK_BYTES + 1) * CHUNK_BYTES
+        if (pos + 4L * block.length > chunk_end) {
+          while (pos < chunk_end) {
+            writeInt(0)
+          }
+        }
+        positions(i) = pos
+        block.foreach(writeInt _)
+      }
+      logInfo("Reachability table: %d/%d links processed" format (batch.end, links.size))
+    }
+    val index_pos = pos
+    positions.foreach(out.writeLong _)
+    out.close()
+    val raf = new RandomAccessFile(fname, "rw")
+    try {
+      raf.writeInt(MAGIC)
+      raf.writeInt(VERSION)
+      raf.writeInt(links.size)
+      raf.writeInt(k)
+      raf.writeDouble(max_distance)
+      raf.writeLong(index_pos)
+    } finally {
+      raf.close()
+    }
+  }
+
+  /**
+   * The block of ints describing all the paths from a link.
+   */
+  private def block(start_link: Link, link_ids: Map[Link, Int], k: Int, max_distance: Double): Array[Int] = {
+    val paths = MMap.empty[Int, ArrayBuffer[Array[Link]]]
+    for ((path, dist) <- new ForwardPathEnumerator(start_link, k, max_distance) if path.length > 1) {
+      paths.getOrElseUpdate(link_ids(path.last), new ArrayBuffer[Array[Link]]) += path
+    }
+    val end_ids = paths.keys.toArray.sorted
+    val n = end_ids.length
+    val res = new ArrayBuffer[Int]
+    res += n
+    res ++= end_ids
+    val offsets_start = res.length
+    res ++= new Array[Int](n + 1)
+    for ((end_id, i) <- end_ids.zipWithIndex) {
+      res(offsets_start + i) = res.length
+      val end_paths = paths(end_id)
+      res += end_paths.length
+      for (path <- end_paths) {
+        res += path.length
+        res ++= path.map(link_ids)
+      }
+    }
+    res(offsets_start + n) = res.length
+    res.toArray
+  }
+
+  /**
+   * Opens a table previously built with the same sequence of links.
+   */
+  def open(links: IndexedSeq[Link], fname: String): ReachabilityTable = {
+    val raf = new RandomAccessFile(new File(fname), "r")
+    try {
+      if (raf.readInt() != MAGIC) {
+        throw new NetconfigException(null, "Not a reachability table: " + fname)
+      }
+      val version = raf.readInt()
+      if (version != VERSION) {
+        throw new NetconfigException(null, "Unsupported reachability table version %d in %s" format (version, fname))
+      }
+      val num_links = raf.readInt()
+      if (num_links != links.size) {
+        throw new NetconfigException(null, "The reachability table %s was built for %d links, not %d" format (fname, num_links, links.size))
+      }
+      val k = raf.readInt()
+      val max_distance = raf.readDouble()
+      val index_pos = raf.readLong()
+      val channel = raf.getChannel
+      val index = channel.map(MapMode.READ_ONLY, index_pos, 8L * num_links).asLongBuffer()
+      val data_start = HEADER_BYTES.toLong
+      val num_chunks = ((index_pos - data_start + CHUNK_BYTES - 1) / CHUNK_BYTES).toInt
+      val chunks = (0 until num_chunks).map(c => {
+        val start = data_start + c * CHUNK_BYTES
+        val size = math.min(CHUNK_BYTES, index_pos - start)
+        channel.map(MapMode.READ_ONLY, start, size).asIntBuffer()
+      }).toArray
+      logInfo("Opened reachability table %s: %d links, k=%d, max distance=%f" format (fname, num_links, k, max_distance))
+      new ReachabilityTable(links, Map.empty[Link, Int] ++ links.zipWithIndex, k, max_distance, index, data_start, chunks)
+    } finally {
+      // The mappings remain valid after the file is closed.
+      raf.close()
+    }
+  }
+}
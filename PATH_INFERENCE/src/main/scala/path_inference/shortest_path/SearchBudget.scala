@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+/**
+ * A limit on the work done by the path searches for a single point.
+ *
+ * The budget is shared by all the searches between the candidate links of two
+ * points, and is expressed as a number of expansions of the search and as a
+ * time limit. Once the budget is exhausted, the searches return the paths
+ * found so far, which the contract of
+ * [[path_inference.shortest_path.PathGenerator2]] allows.
+ *
+ * The budget can also lower the depth of each search (for example to scale
+ * it to the distance between the points): a search that stops at this depth
+ * before finding all its paths counts as truncated, since a deeper search
+ * could have found more.
+ *
+ * This class is not thread-safe: use one budget per point.
+ *
+ * @param max_expansions the maximum number of expansions (0 for no limit)
+ * @param max_nanos the time limit in nanoseconds, starting from the creation
+ *   of the budget (0 for no limit)
+ * @param max_search_expansions the maximum number of expansions of each
+ *   search (0 for the limit of the search itself)
+ */
+final class SearchBudget(
+  val max_expansions: Int,
+  val max_nanos: Long,
+  val max_search_expansions: Int = 0) {
+
+  private[this] val deadline = if (max_nanos > 0) {
+    System.nanoTime + max_nanos
+  } else {
+    Long.MaxValue
+  }
+
+  private[this] var num_expansions = 0
+
+  private[this] var out_of_time = false
+
+  private[this] var num_truncated = 0
+
+  /**
+   * The number of expansions performed so far.
+   */
+  def expansions: Int = num_expansions
+
+  /**
+   * Records one expansion of a search.
+   */
+  def spend(): Unit = {
+    num_expansions += 1
+    // Reading the clock has a cost, check it every 16 expansions only.
+    if (!out_of_time && deadline != Long.MaxValue && (num_expansions & 15) == 0) {
+      out_of_time = System.nanoTime > deadline
+    }
+  }
+
+  /**
+   * True if the searches should stop.
+   */
+  def exhausted: Boolean = {
+    (max_expansions > 0 && num_expansions >= max_expansions) || out_of_time
+  }
+
+  /**
+   * Records that a search returned before completion because of the budget.
+   */
+  def markTruncated(): Unit = {
+    num_truncated += 1
+  }
+
+  /**
+   * The number of searches that returned before completion.
+   */
+  def numTruncated: Int = num_truncated
+
+  /**
+   * True if some searches returned before completion.
+   */
+  def truncated: Boolean = num_truncated > 0
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+
+/**
+ * Makes sure that concurrent computations for the same key are only
+ * performed once.
+ *
+ * The first thread asking for a key runs the computation, the other threads
+ * asking for the same key in the meantime wait for its result. Once the
+ * computation is finished, the key is forgotten: the result is expected to be
+ * stored somewhere else (in a cache) by the computation itself.
+ */
+private[shortest_path] final class SingleFlight[K, V] {
+
+  private[this] val pending = new ConcurrentHashMap[K, FutureTask[V]]()
+
+  def apply(key: K)(compute: => V): V = load(key, (v: V) => true)(compute)
+
+  /**
+   * Same as apply, except that a thread waiting for the computation of
+   * another thread only takes its result if it is shareable. Otherwise, it
+   * runs the computation itself (concurrently with the other waiters).
+   */
+  def load(key: K, shareable: V => Boolean)(compute: => V): V = {
+    val task = new FutureTask[V](new Callable[V] {
+      def call(): V = compute
+    })
+    val existing = pending.putIfAbsent(key, task)
+    if (existing == null) {
+      try {
+        task.run()
+        get(task)
+      } finally {
+        pending.remove(key, task)
+      }
+    } else {
+      val v = get(existing)
+      if (shareable(v)) v else compute
+    }
+  }
+
+  /**
+   * True if a computation for this key is running.
+   */
+  def isPending(key: K): Boolean = pending.containsKey(key)
+
+  private[this] def get(task: FutureTask[V]): V = {
+    try {
+      task.get
+    } catch {
+      case e: ExecutionException => throw e.getCause
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.util.{ LinkedHashMap => JLinkedHashMap }
+import core_extensions.StripedCounter
+
+/**
+ * A cache backend with a frequency-aware admission policy (W-TinyLFU).
+ *
+ * New elements first enter a small LRU window (1% of the capacity). When
+ * they leave the window, they compete with the least recently used element of
+ * the main LRU region: the element with the highest recent frequency, as
+ * estimated by a [[path_inference.shortest_path.FrequencySketch]], is kept.
+ * This way, the pairs of links that are queried only once (noisy projections)
+ * do not flush out the pairs that are queried by every vehicle.
+ *
+ * All the operations are synchronized. Put a
+ * [[path_inference.shortest_path.TwoLevelPathCacheBackend]] in front of this
+ * backend when used by many threads: it reports the hits of its L1 caches
+ * (recordAccesses), so the pairs answered by the L1 caches still count as
+ * frequent.
+ *
+ * @param max_size the maximum number of elements
+ */
+final class TinyLfuPathCacheBackend[V <: AnyRef](max_size: Int) extends PathCacheBackend[V] {
+
+  assert(max_size > 0)
+
+  private[this] val window_size = math.max(1, max_size / 100)
+
+  private[this] val main_size = math.max(1, max_size - window_size)
+
+  private[this] val sketch = new FrequencySketch(max_size)
+
+  // Both regions are kept in access order.
+  private[this] val window = new JLinkedHashMap[PathKey, V](2 * window_size, 0.75f, true)
+
+  private[this] val main = new JLinkedHashMap[PathKey, V](2 * main_size, 0.75f, true)
+
+  private[this] val hits = new StripedCounter
+  private[this] val misses = new StripedCounter
+  private[this] val rejections = new StripedCounter
+
+  def get(key: PathKey): Option[V] = {
+    val res = synchronized {
+      sketch.increment(key.hashCode)
+      val v = window.get(key)
+      if (v != null) {
+        v
+      } else {
+        main.get(key)
+      }
+    }
+    if (res == null) {
+      misses.increment()
+      None
+    } else {
+      hits.increment()
+      Some(res)
+    }
+  }
+
+  override def recordAccesses(keys: Array[PathKey], n: Int): Unit = synchronized {
+    var i = 0
+    while (i < n) {
+      sketch.increment(keys(i).hashCode)
+      i += 1
+    }
+  }
+
+  def put(key: PathKey, value: V): Unit = synchronized {
+    if (main.containsKey(key)) {
+      main.put(key, value)
+    } else {
+      window.put(key, value)
+      if (window.size > window_size) {
+        evictFromWindow()
+      }
+    }
+  }
+
+  def size: Long = synchronized { window.size + main.size }
+
+  /**
+   * The fraction of the queries answered by this backend.
+   */
+  def hitRate: Double = {
+    val h = hits.sum
+    val total = h + misses.sum
+    if (total == 0) 0.0 else h.toDouble / total
+  }
+
+  override def statistics: String = {
+    "%d elements, hit rate %.3f, %d candidates rejected" format (size, hitRate, rejections.sum)
+  }
+
+  /**
+   * Moves the oldest element of the window to the main region, if it is more
+   * frequent than the element it would evict.
+   */
+  private[this] def evictFromWindow(): Unit = {
+    val it = window.entrySet.iterator
+    val candidate = it.next()
+    it.remove()
+    if (main.size < main_size) {
+      main.put(candidate.getKey, candidate.getValue)
+    } else {
+      val victim_it = main.entrySet.iterator
+      val victim = victim_it.next()
+      if (sketch.frequency(candidate.getKey.hashCode) > sketch.frequency(victim.getKey.hashCode)) {
+        victim_it.remove()
+        main.put(candidate.getKey, candidate.getValue)
+      } else {
+        rejections.increment()
+      }
+    }
+  }
+}
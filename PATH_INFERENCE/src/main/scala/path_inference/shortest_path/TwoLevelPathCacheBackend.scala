@@ -0,0 +1,117 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.util.{ LinkedHashMap => JLinkedHashMap }
+import java.util.{ Map => JMap }
+import core_extensions.StripedCounter
+
+/**
+ * A two-level cache: a small cache private to each thread (L1) in front of a
+ * shared backend (L2).
+ *
+ * Consecutive points of a vehicle query the same few pairs of links, which
+ * are then answered by the L1 cache without touching the shared structures
+ * of the L2 backend.
+ *
+ * Semantics:
+ *  - each thread has its own L1 cache, which holds the l1_size elements most
+ *    recently used by this thread (LRU eviction).
+ *  - all the elements found or stored by a thread go in its L1 cache. The
+ *    elements stored are also written to the L2 backend.
+ *  - the L1 caches never evict anything from the L2 backend. An element
+ *    evicted from the L2 backend may still be served by some L1 caches, which
+ *    is fine since the stored values never change.
+ *  - the L1 hits are reported to the L2 backend in batches (recordAccesses),
+ *    so that its eviction policy sees the real frequency of the elements.
+ *
+ * @param l2 the shared backend
+ * @param l1_size the maximum number of elements in each L1 cache
+ */
+final class TwoLevelPathCacheBackend[V <: AnyRef](
+  private[this] val l2: PathCacheBackend[V],
+  l1_size: Int) extends PathCacheBackend[V] {
+
+  assert(l1_size > 0)
+
+  // The number of L1 hits buffered before they are reported to L2.
+  private[this] val access_batch = 32
+
+  private[this] final class L1 {
+    val map = new JLinkedHashMap[PathKey, V](2 * l1_size, 0.75f, true) {
+      override def removeEldestEntry(eldest: JMap.Entry[PathKey, V]): Boolean = this.size() > l1_size
+    }
+    val accesses = new Array[PathKey](access_batch)
+    var num_accesses = 0
+
+    def recordAccess(key: PathKey): Unit = {
+      accesses(num_accesses) = key
+      num_accesses += 1
+      if (num_accesses == access_batch) {
+        l2.recordAccesses(accesses, num_accesses)
+        num_accesses = 0
+      }
+    }
+  }
+
+  private[this] val l1 = new ThreadLocal[L1] {
+    override def initialValue(): L1 = new L1
+  }
+
+  private[this] val l1_hits = new StripedCounter
+  private[this] val l2_hits = new StripedCounter
+  private[this] val misses = new StripedCounter
+
+  def get(key: PathKey): Option[V] = {
+    val local = l1.get
+    val res = local.map.get(key)
+    if (res != null) {
+      l1_hits.increment()
+      local.recordAccess(key)
+      Some(res)
+    } else {
+      l2.get(key) match {
+        case Some(v) => {
+          l2_hits.increment()
+          local.map.put(key, v)
+          Some(v)
+        }
+        case None => {
+          misses.increment()
+          None
+        }
+      }
+    }
+  }
+
+  def put(key: PathKey, value: V): Unit = {
+    l2.put(key, value)
+    l1.get.map.put(key, value)
+  }
+
+  def size: Long = l2.size
+
+  def numL1Hits: Long = l1_hits.sum
+
+  def numL2Hits: Long = l2_hits.sum
+
+  def numMisses: Long = misses.sum
+
+  override def statistics: String = {
+    "%d elements in L2, %d L1 hits, %d L2 hits, %d misses" format (size, numL1Hits, numL2Hits, numMisses)
+  }
+}
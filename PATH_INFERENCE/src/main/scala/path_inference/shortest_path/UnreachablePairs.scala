@@ -0,0 +1,139 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference.shortest_path
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A compact set of pairs of links between which no path could be found.
+ *
+ * The pairs are identified by the dense ids of a
+ * [[path_inference.shortest_path.LinkIndex]] and packed into longs, stored in
+ * open-addressing hash tables of primitive longs. Each generation has 2 to 4
+ * slots of 8 bytes per pair, so the set takes 32 to 64 bytes per pair of
+ * max_size.
+ * Unlike a bloom filter, this set has no false positives: a reachable pair is
+ * never reported as unreachable.
+ *
+ * The pairs are stored in two generations. When the current generation
+ * is full, it becomes the previous generation and the former previous
+ * generation is discarded. Pairs found in the previous generation are copied
+ * to the current one, so that the pairs queried often are kept.
+ *
+ * This class is thread-safe and does not lock.
+ *
+ * @param max_size the maximum number of pairs in each generation
+ */
+final class UnreachablePairs(max_size: Int) {
+
+  assert(max_size > 0)
+
+  private[this] val num_slots = {
+    var n = 16
+    while (n < 2L * max_size) {
+      n *= 2
+    }
+    n
+  }
+
+  private[this] val mask = num_slots - 1
+
+  private[this] final class Generation {
+    // 0 marks an empty slot, the keys are shifted by 1.
+    val slots = new AtomicLongArray(num_slots)
+    val count = new AtomicInteger(0)
+  }
+
+  @volatile private[this] var current = new Generation
+
+  @volatile private[this] var previous = new Generation
+
+  def contains(start_id: Int, end_id: Int): Boolean = {
+    val key = packKey(start_id, end_id)
+    if (find(current, key)) {
+      true
+    } else if (find(previous, key)) {
+      insert(key)
+      true
+    } else {
+      false
+    }
+  }
+
+  def add(start_id: Int, end_id: Int): Unit = {
+    insert(packKey(start_id, end_id))
+  }
+
+  /**
+   * The approximate number of pairs stored (a pair promoted from the
+   * previous generation is counted in both).
+   */
+  def size: Int = current.count.get + previous.count.get
+
+  private[this] def packKey(start_id: Int, end_id: Int): Long =
+    ((start_id.toLong << 32) | (end_id.toLong & 0xffffffffL)) + 1
+
+  private[this] def slot(key: Long): Int = {
+    val h = key * 0x9E3779B97F4A7C15L
+    (h ^ (h >>> 32)).toInt & mask
+  }
+
+  private[this] def find(gen: Generation, key: Long): Boolean = {
+    var i = slot(key)
+    var k = gen.slots.get(i)
+    while (k != 0) {
+      if (k == key) {
+        return true
+      }
+      i = (i + 1) & mask
+      k = gen.slots.get(i)
+    }
+    false
+  }
+
+  private[this] def insert(key: Long): Unit = {
+    val gen = current
+    var i = slot(key)
+    var done = false
+    while (!done) {
+      val k = gen.slots.get(i)
+      if (k == key) {
+        // Already stored: not counted again.
+        done = true
+      } else if (k == 0 && gen.slots.compareAndSet(i, 0, key)) {
+        // Only the new keys count towards the size of the generation. The
+        // table has twice as many slots as max_size, which leaves room for
+        // the concurrent insertions before the rotation.
+        if (gen.count.incrementAndGet() >= max_size) {
+          rotate(gen)
+        }
+        done = true
+      } else if (k != 0) {
+        i = (i + 1) & mask
+      }
+      // Otherwise the slot was taken concurrently, check it again.
+    }
+  }
+
+  private[this] def rotate(full: Generation): Unit = synchronized {
+    if (current eq full) {
+      previous = full
+      current = new Generation
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference_test
+
+import org.junit._
+import org.junit.Assert._
+import core.Coordinate
+import core.Time
+import netconfig.Datum.ProbeCoordinate
+import netconfig.Link
+import netconfig.Spot
+import path_inference.AdaptiveParameters
+import path_inference.PathInferenceParameters2
+
+class AdaptiveParametersTest {
+
+  def pc(x: Double, time: Time, speed: java.lang.Float, hdop: java.lang.Float): ProbeCoordinate[Link] = {
+    val c = new Coordinate(Coordinate.SRID_CARTESIAN, x, 0)
+    ProbeCoordinate.from("id", time, c, null.asInstanceOf[Array[Spot[Link]]], speed, null, null, hdop)
+  }
+
+  @Test def scales: Unit = {
+    val params = new PathInferenceParameters2
+    params.setMaxPaths(100)
+    params.setAdaptiveMinScale(0.1)
+    val adaptive = new AdaptiveParameters(params)
+    val t = Time.newTimeFromEpochSeconds(1000)
+    // 1 second and 10 meters apart: smallest scale.
+    val p1 = pc(0, t, 10f, 2f)
+    val p2 = pc(10, t.plus(1), 10f, 2f)
+    assertEquals(10, adaptive.maxPaths(p1, p2))
+    // 2 minutes apart: full search.
+    val p3 = pc(10, t.plus(120), null, null)
+    assertEquals(100, adaptive.maxPaths(p1, p3))
+    // 30 seconds at 20 m/s: 600 meters.
+    val p4 = pc(100, t.plus(30), 20f, null)
+    assertEquals(60, adaptive.maxPaths(p1, p4))
+    // Projection
+    assertEquals(params.projectionRadius * 0.4, adaptive.projectionRadius(p1), 1e-6)
+    assertEquals(params.projectionRadius, adaptive.projectionRadius(p3), 1e-6)
+  }
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package path_inference_test
+
+import org.junit._
+import org.junit.Assert._
+import core.Coordinate
+import netconfig.Link
+import network.simple.SimpleNetworkBuilder
+import path_inference.shortest_path.AStar2
+import path_inference.shortest_path.DefaultCachedPathGenerator
+import path_inference.shortest_path.ForwardPathEnumerator
+import path_inference.shortest_path.GuavaPathCacheBackend
+import path_inference.shortest_path.HistoricalPathGenerator
+import path_inference.shortest_path.IncrementalPathSearch
+import path_inference.shortest_path.LinkIndex
+import path_inference.shortest_path.OffHeapPathsCache
+import path_inference.shortest_path.PathCacheWarmer
+import path_inference.shortest_path.PathGenerator2
+import path_inference.shortest_path.PathKey
+import path_inference.shortest_path.PathPrefetcher
+import path_inference.shortest_path.ReachabilityTable
+import path_inference.shortest_path.SearchBudget
+import path_inference.shortest_path.TinyLfuPathCacheBackend
+import path_inference.shortest_path.TwoLevelPathCacheBackend
+import path_inference.shortest_path.UnreachablePairs
+import java.util.concurrent.atomic.AtomicInteger
+import java.io.File
+
+class PathCachesTest {
+
+  /**
+   * A chain of n links going east, 100 meters each.
+   */
+  def chain(n: Int): Array[Link] = {
+    val builder = new SimpleNetworkBuilder
+    val nodes = (0 to n).map(i => builder.addNode(new Coordinate(Coordinate.SRID_CARTESIAN, 100 * i, 0)))
+    val links = (0 until n).map(i => builder.addLink(nodes(i), nodes(i + 1)))
+    builder.getNetwork
+    links.toArray
+  }
+
+  @Test def offHeapRoundTrip: Unit = {
+    val links = chain(5)
+    val cache = new OffHeapPathsCache(new LinkIndex, 100, 1)
+    val key = PathKey(links(0), links(3))
+    assertEquals(None, cache.get(key))
+    val paths = Array(links.take(4), Array(links(0), links(2), links(3)))
+    cache.put(key, paths)
+    val res = cache.get(key).get
+    assertEquals(2, res.length)
+    assertTrue(res(0).sameElements(paths(0)))
+    assertTrue(res(1).sameElements(paths(1)))
+    // Unreachable pairs are stored too.
+    val key2 = PathKey(links(3), links(0))
+    cache.put(key2, Array.empty[Array[Link]])
+    assertEquals(0, cache.get(key2).get.length)
+    assertEquals(2L, cache.size)
+  }
+
+  @Test def offHeapEviction: Unit = {
+    val links = chain(20)
+    val cache = new OffHeapPathsCache(new LinkIndex, 10, 1)
+    for (i <- 0 until 20; j <- 0 until 20) {
+      cache.put(PathKey(links(i), links(j)), Array(Array(links(i), links(j))))
+    }
+    assertEquals(10L, cache.size)
+    // The most recent elements are kept.
+    val res = cache.get(PathKey(links(19), links(19))).get
+    assertTrue(res(0).sameElements(Array(links(19), links(19))))
+    assertEquals(None, cache.get(PathKey(links(0), links(0))))
+  }
+
+  /**
+   * Concurrent requests for the same pair of links are only computed once.
+   */
+  @Test def singleFlight: Unit = {
+    val links = chain(2)
+    val num_calls = new AtomicInteger(0)
+    val slow_gen = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        num_calls.incrementAndGet()
+        Thread.sleep(200)
+        Array(Array(start_link, end_link))
+      }
+    }
+    val path_gen = new DefaultCachedPathGenerator(slow_gen, path_cache_size = 10)
+    // The assertions run on the main thread: a failure in another thread
+    // would not be reported.
+    val num_paths = Array.fill(8)(-1)
+    val threads = (0 until 8).map(i => new Thread(new Runnable {
+      def run(): Unit = {
+        num_paths(i) = path_gen.getShortestPaths(links(0), links(1), 10).length
+      }
+    }))
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    assertEquals(Seq.fill(8)(1), num_paths.toSeq)
+    assertEquals(1, num_calls.get)
+    assertEquals(8L, path_gen.numQueries)
+    assertEquals(1L, path_gen.numCacheMisses)
+  }
+
+  /**
+   * A search truncated by the budget of one request is not returned to the
+   * concurrent requests.
+   */
+  @Test def singleFlightTruncated: Unit = {
+    val links = chain(2)
+    val slow_gen = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        getShortestPaths(start_link, end_link, max_num_paths, null)
+      }
+      override def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
+        Thread.sleep(200)
+        if (budget != null && budget.exhausted) {
+          budget.markTruncated()
+          Array.empty[Array[Link]]
+        } else {
+          Array(Array(start_link, end_link))
+        }
+      }
+    }
+    val path_gen = new DefaultCachedPathGenerator(slow_gen, path_cache_size = 10)
+    val budget = new SearchBudget(1, 0)
+    budget.spend()
+    val num_paths = Array(-1)
+    val thread = new Thread(new Runnable {
+      def run(): Unit = {
+        num_paths(0) = path_gen.getShortestPaths(links(0), links(1), 10, budget).length
+      }
+    })
+    thread.start()
+    Thread.sleep(50)
+    assertEquals(1, path_gen.getShortestPaths(links(0), links(1), 10).length)
+    thread.join()
+    assertEquals(0, num_paths(0))
+    assertEquals(1L, path_gen.numTruncatedSearches)
+    assertEquals(1, path_gen.getApproximatePathsCacheSize)
+  }
+
+  @Test def unreachablePairs: Unit = {
+    val links = chain(3)
+    val num_calls = new AtomicInteger(0)
+    val gen = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = {
+        num_calls.incrementAndGet()
+        null
+      }
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        num_calls.incrementAndGet()
+        Array.empty[Array[Link]]
+      }
+    }
+    val path_gen = new DefaultCachedPathGenerator(gen, path_cache_size = 10, unreachable_pairs_size = 10)
+    for (i <- 0 until 3) {
+      assertEquals(0, path_gen.getShortestPaths(links(2), links(0), 10).length)
+      assertEquals(null, path_gen.getShortestPath(links(1), links(0)))
+    }
+    assertEquals(2, num_calls.get)
+    assertEquals(0, path_gen.getApproximatePathsCacheSize)
+    assertTrue(path_gen.isKnownUnreachable(links(2), links(0)))
+    assertFalse(path_gen.isKnownUnreachable(links(0), links(2)))
+  }
+
+  /**
+   * Only the new pairs count towards the size of a generation.
+   */
+  @Test def unreachablePairsSize: Unit = {
+    val pairs = new UnreachablePairs(4)
+    for (i <- 0 until 10) {
+      pairs.add(1, 2)
+    }
+    assertEquals(1, pairs.size)
+    pairs.add(2, 3)
+    pairs.add(3, 4)
+    assertEquals(3, pairs.size)
+    assertTrue(pairs.contains(1, 2))
+    assertEquals(3, pairs.size)
+  }
+
+  @Test def twoLevels: Unit = {
+    val links = chain(3)
+    val l2 = new GuavaPathCacheBackend[Array[Link]](100)
+    val cache = new TwoLevelPathCacheBackend(l2, 1)
+    val key1 = PathKey(links(0), links(1))
+    val key2 = PathKey(links(1), links(2))
+    cache.put(key1, Array(links(0), links(1)))
+    cache.put(key2, Array(links(1), links(2)))
+    // key1 was evicted from the L1 cache by key2.
+    assertTrue(cache.get(key2).isDefined)
+    assertTrue(cache.get(key1).isDefined)
+    assertTrue(cache.get(key1).isDefined)
+    assertEquals(None, cache.get(PathKey(links(2), links(0))))
+    assertEquals(2L, cache.numL1Hits)
+    assertEquals(1L, cache.numL2Hits)
+    assertEquals(1L, cache.numMisses)
+    // Another thread does not see the L1 cache of this thread.
+    val found = Array(false)
+    val t = new Thread(new Runnable {
+      def run(): Unit = {
+        found(0) = cache.get(key1).isDefined
+      }
+    })
+    t.start()
+    t.join()
+    assertTrue(found(0))
+    assertEquals(2L, cache.numL2Hits)
+  }
+
+  /**
+   * Frequent elements are not evicted by a flow of elements seen only once.
+   */
+  @Test def tinyLfu: Unit = {
+    val links = chain(20)
+    val cache = new TinyLfuPathCacheBackend[Array[Link]](100)
+    val hot_keys = (0 until 10).map(i => PathKey(links(i), links(i)))
+    for (i <- 0 until 10; key <- hot_keys) {
+      if (cache.get(key).isEmpty) {
+        cache.put(key, Array(key.start_link))
+      }
+    }
+    for (i <- 0 until 20; j <- 0 until 20 if i != j) {
+      val key = PathKey(links(i), links(j))
+      if (cache.get(key).isEmpty) {
+        cache.put(key, Array(key.start_link, key.end_link))
+      }
+    }
+    assertTrue(cache.size <= 100)
+    for (key <- hot_keys) {
+      assertTrue(cache.get(key).isDefined)
+    }
+  }
+
+  /**
+   * The pairs answered by the L1 caches count as frequent in the L2 backend.
+   */
+  @Test def tinyLfuBehindL1: Unit = {
+    val links = chain(20)
+    val l2 = new TinyLfuPathCacheBackend[Array[Link]](100)
+    val cache = new TwoLevelPathCacheBackend(l2, 10)
+    val hot_keys = (0 until 5).map(i => PathKey(links(i), links(i)))
+    for (key <- hot_keys) {
+      cache.put(key, Array(key.start_link))
+    }
+    for (i <- 0 until 100; key <- hot_keys) {
+      assertTrue(cache.get(key).isDefined)
+    }
+    // Each new pair is queried twice before being stored.
+    for (i <- 0 until 20; j <- 0 until 20 if i != j) {
+      val key = PathKey(links(i), links(j))
+      if (l2.get(key).isEmpty && l2.get(key).isEmpty) {
+        l2.put(key, Array(key.start_link, key.end_link))
+      }
+    }
+    for (key <- hot_keys) {
+      assertTrue(l2.get(key).isDefined)
+    }
+  }
+
+  /**
+   * The observed routes of the most frequent pairs of links are loaded
+   * first, without any path search.
+   */
+  @Test def warmUp: Unit = {
+    val links = chain(4)
+    val num_calls = new AtomicInteger(0)
+    val gen = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        num_calls.incrementAndGet()
+        Array(Array(start_link, end_link))
+      }
+    }
+    val path_gen = new DefaultCachedPathGenerator(gen, path_cache_size = 10)
+    val routes = Seq(links.take(3), links.take(3), links.take(2), links.drop(1), Array(links(0)))
+    val warmer = new PathCacheWarmer(path_gen, 10, 2)
+    assertEquals(2, warmer.warmUp(routes.iterator))
+    assertEquals(0, num_calls.get)
+    assertEquals(2, path_gen.getApproximatePathsCacheSize)
+    val paths = path_gen.getShortestPaths(links(0), links(2), 10)
+    assertEquals(1, paths.length)
+    assertTrue(paths(0).sameElements(links.take(3)))
+    assertEquals(0L, path_gen.numCacheMisses)
+  }
+
+  @Test def historicalPaths: Unit = {
+    val links = chain(4)
+    val num_calls = new AtomicInteger(0)
+    val fallback = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        num_calls.incrementAndGet()
+        Array.empty[Array[Link]]
+      }
+    }
+    val detour = Array(links(0), links(3), links(2))
+    val routes = Seq(links.take(3), links.take(3), detour, links.take(3), detour, links.drop(2))
+    val path_gen = HistoricalPathGenerator.build(routes.iterator, 2, 10, fallback)
+    assertEquals(1, path_gen.numPairs)
+    val paths = path_gen.getShortestPaths(links(0), links(2), 10)
+    assertEquals(2, paths.length)
+    assertTrue(paths(0).sameElements(links.take(3)))
+    assertTrue(paths(1).sameElements(detour))
+    assertEquals(0, num_calls.get)
+    // Not enough support.
+    assertEquals(0, path_gen.getShortestPaths(links(2), links(3), 10).length)
+    assertEquals(1, num_calls.get)
+    assertEquals(1L, path_gen.numHits)
+    assertEquals(1L, path_gen.numFallbacks)
+  }
+
+  /**
+   * The routes that start and end on the same link are not indexed.
+   */
+  @Test def historicalSameLink: Unit = {
+    val links = chain(3)
+    val fallback = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        Array.empty[Array[Link]]
+      }
+    }
+    val routes = Seq(Array(links(1)), Array(links(1)), links.take(2), links.take(2))
+    val path_gen = HistoricalPathGenerator.build(routes.iterator, 2, 10, fallback)
+    assertEquals(1, path_gen.numPairs)
+    assertEquals(0, path_gen.getShortestPaths(links(1), links(1), 10).length)
+    assertEquals(1L, path_gen.numFallbacks)
+  }
+
+  @Test def forwardPaths: Unit = {
+    val links = chain(5)
+    val paths = new ForwardPathEnumerator(links(0), 2, 150.0).toArray
+    assertEquals(3, paths.length)
+    assertTrue(paths(1)._1.sameElements(links.take(2)))
+    assertTrue(paths(2)._1.sameElements(links.take(3)))
+    assertEquals(100.0, paths(2)._2, 1e-6)
+  }
+
+  @Test def reachabilityTable: Unit = {
+    val links = chain(5)
+    val f = File.createTempFile("reachability", ".bin")
+    f.deleteOnExit()
+    ReachabilityTable.build(links, 2, 150.0, f.getAbsolutePath)
+    val table = ReachabilityTable.open(links, f.getAbsolutePath)
+    val paths = table.get(links(1), links(3)).get
+    assertEquals(1, paths.length)
+    assertTrue(paths(0).sameElements(links.slice(1, 4)))
+    // Too far.
+    assertEquals(None, table.get(links(0), links(3)))
+    // Not reachable.
+    assertEquals(None, table.get(links(3), links(0)))
+  }
+
+  @Test def incrementalSearch: Unit = {
+    val links = chain(5)
+    val num_calls = new AtomicInteger(0)
+    val fallback = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        num_calls.incrementAndGet()
+        Array.empty[Array[Link]]
+      }
+    }
+    val path_gen = new IncrementalPathSearch(fallback, 2, 250.0, 2400.0, 10, 100)
+    assertTrue(path_gen.getShortestPaths(links(0), links(2), 1)(0).sameElements(links.take(3)))
+    assertTrue(path_gen.getShortestPaths(links(0), links(3), 1)(0).sameElements(links.take(4)))
+    assertEquals(2L, path_gen.numSearches)
+    assertEquals(1L, path_gen.numReused)
+    // Too far for the incremental search.
+    assertEquals(0, path_gen.getShortestPaths(links(0), links(4), 1).length)
+    assertEquals(1, num_calls.get)
+    // The tree went past link 1 before it was queried.
+    assertEquals(0, path_gen.getShortestPaths(links(0), links(1), 1).length)
+    assertEquals(2, num_calls.get)
+    assertEquals(2L, path_gen.numSearches)
+    // Out of expansions.
+    val bounded = new IncrementalPathSearch(fallback, 2, 250.0, 2400.0, 10, 2)
+    assertEquals(0, bounded.getShortestPaths(links(0), links(3), 1).length)
+    assertEquals(3, num_calls.get)
+    assertEquals(0L, bounded.numSearches)
+    // Fewer paths than requested, or more paths than the trees keep.
+    val other = new IncrementalPathSearch(fallback, 2, 250.0, 2400.0, 2, 100)
+    assertEquals(0, other.getShortestPaths(links(0), links(2), 2).length)
+    assertEquals(4, num_calls.get)
+    assertEquals(0, other.getShortestPaths(links(1), links(3), 3).length)
+    assertEquals(5, num_calls.get)
+    assertEquals(0L, other.numSearches)
+    // Close in a straight line, but beyond the driving distance of the trees.
+    val short_travel = new IncrementalPathSearch(fallback, 2, 250.0, 50.0, 10, 100)
+    assertEquals(0, short_travel.getShortestPaths(links(0), links(2), 1).length)
+    assertEquals(6, num_calls.get)
+    assertEquals(0L, short_travel.numSearches)
+  }
+
+  @Test def prefetch: Unit = {
+    val links = chain(5)
+    val gen = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        Array(Array(start_link, end_link))
+      }
+    }
+    val path_gen = new DefaultCachedPathGenerator(gen, path_cache_size = 10)
+    val prefetcher = new PathPrefetcher(path_gen, 10, 150.0, 1)
+    prefetcher.prefetch("vehicle", Seq(links(0)))
+    var waited = 0
+    while (prefetcher.numPrefetchedPairs < 2 && waited < 5000) {
+      Thread.sleep(10)
+      waited += 10
+    }
+    prefetcher.shutdown()
+    // The links 1 and 2 are within 150 meters of link 0.
+    assertEquals(2, path_gen.getApproximatePathsCacheSize)
+    path_gen.getShortestPaths(links(0), links(2), 10)
+    assertEquals(0L, path_gen.numCacheMisses)
+    assertEquals(2L, path_gen.numPrefetchComputations)
+    assertEquals(1.0, path_gen.hitRate, 1e-9)
+  }
+
+  /**
+   * The background computations skip the pairs already cached, and only
+   * start from the first candidate links.
+   */
+  @Test def prefetchSkips: Unit = {
+    val links = chain(5)
+    val gen = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        Array(Array(start_link, end_link))
+      }
+    }
+    val path_gen = new DefaultCachedPathGenerator(gen, path_cache_size = 10)
+    path_gen.getShortestPaths(links(0), links(1), 10)
+    assertFalse(path_gen.prefetchShortestPaths(links(0), links(1), 10, null))
+    assertTrue(path_gen.prefetchShortestPaths(links(0), links(2), 10, null))
+    // The background computations are not cache misses.
+    assertEquals(1L, path_gen.numCacheMisses)
+    assertEquals(1L, path_gen.numPrefetchComputations)
+    val prefetcher = new PathPrefetcher(path_gen, 10, 150.0, 1, 1)
+    prefetcher.prefetch("vehicle", Seq(links(1), links(0)))
+    var waited = 0
+    while (prefetcher.numPrefetchedPairs < 2 && waited < 5000) {
+      Thread.sleep(10)
+      waited += 10
+    }
+    prefetcher.shutdown()
+    // The paths from link 1 only.
+    assertEquals(2L, prefetcher.numPrefetchedPairs)
+    assertEquals(4, path_gen.getApproximatePathsCacheSize)
+  }
+
+  /**
+   * The searches stopped by the budget are not cached.
+   */
+  @Test def searchBudget: Unit = {
+    val links = chain(5)
+    // Each search costs 2 expansions.
+    val gen = new PathGenerator2 {
+      def getShortestPath(start_link: Link, end_link: Link): Array[Link] = null
+      def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int): Array[Array[Link]] = {
+        Array(Array(start_link, end_link))
+      }
+      override def getShortestPaths(start_link: Link, end_link: Link, max_num_paths: Int, budget: SearchBudget): Array[Array[Link]] = {
+        for (i <- 0 until 2) {
+          if (budget.exhausted) {
+            budget.markTruncated()
+            return Array.empty[Array[Link]]
+          }
+          budget.spend()
+        }
+        Array(Array(start_link, end_link))
+      }
+    }
+    val path_gen = new DefaultCachedPathGenerator(gen, path_cache_size = 10)
+    val budget = new SearchBudget(3, 0)
+    assertEquals(1, path_gen.getShortestPaths(links(0), links(1), 10, budget).length)
+    assertEquals(0, path_gen.getShortestPaths(links(0), links(2), 10, budget).length)
+    assertTrue(budget.exhausted)
+    assertTrue(budget.truncated)
+    assertEquals(1, path_gen.getApproximatePathsCacheSize)
+    assertEquals(1L, path_gen.numTruncatedSearches)
+    // Cached paths are still available.
+    assertEquals(1, path_gen.getShortestPaths(links(0), links(1), 10, budget).length)
+  }
+
+  /**
+   * The depth of each search can be lowered by the budget. A search stopped
+   * at this depth counts as a truncation.
+   */
+  @Test def searchDepthInBudget: Unit = {
+    val links = chain(5)
+    val astar = new AStar2(100, 2400)
+    // Reaching link 4 takes 4 expansions.
+    val shallow = new SearchBudget(0, 0, 2)
+    assertEquals(0, astar.getShortestPaths(links(0), links(4), 10, shallow).length)
+    assertTrue(shallow.truncated)
+    val deep = new SearchBudget(0, 0, 10)
+    assertEquals(1, astar.getShortestPaths(links(0), links(4), 10, deep).length)
+    assertEquals(1, astar.getShortestPaths(links(0), links(4), 10, null).length)
+  }
+
+  /**
+   * A shallow search does not cache its result, nor mark the pair as
+   * unreachable, for the deeper searches that follow.
+   */
+  @Test def shallowSearchNotCached: Unit = {
+    val links = chain(5)
+    val path_gen = new DefaultCachedPathGenerator(new AStar2(100, 2400), path_cache_size = 10, unreachable_pairs_size = 10)
+    val shallow = new SearchBudget(0, 0, 2)
+    assertEquals(0, path_gen.getShortestPaths(links(0), links(4), 10, shallow).length)
+    assertFalse(path_gen.isKnownUnreachable(links(0), links(4)))
+    assertEquals(0, path_gen.getApproximatePathsCacheSize)
+    assertEquals(1L, path_gen.numTruncatedSearches)
+    assertEquals(1, path_gen.getShortestPaths(links(0), links(4), 10, new SearchBudget(0, 0)).length)
+    assertEquals(1, path_gen.getApproximatePathsCacheSize)
+  }
+}
@@ -20,8 +20,17 @@ import org.junit.Assert._
 
 import netconfig._
 import netconfig.Datum._
+import netconfig_extensions.projection.ProjectionCache
+import netconfig_extensions.projection.Projector
 import netconfig_extensions.projection.ProjectorFactory
+import netconfig_extensions.projection.ProjectorIndex
+import netconfig_extensions.projection.ProjectorType
+import netconfig_extensions.projection.SegmentStore
+import netconfig_extensions.projection.SimpleProjection
+import network.simple.SimpleNetworkBuilder
 import core._
+import path_inference.manager.ProjectionHook
+import collection.JavaConversions._
 
 object PIFUtils {
   def createPC(x: Double, y: Double, id: String = "fakeid"): ProbeCoordinate[Link] = {
@@ -54,3 +63,319 @@ class BasicProjectionTest {
     assertEquals(1, sps.length)
   }
 }
+
+/**
+ * The spatial indexes return the same projections as the linear projector.
+ */
+class ProjectorTypesTest {
+
+  /**
+   * A grid of n x n nodes, 50 meters apart, with links in both directions
+   * between the neighbours.
+   */
+  def grid(n: Int): Array[Link] = {
+    val builder = new SimpleNetworkBuilder
+    val nodes = Array.tabulate(n, n)((i, j) => builder.addNode(new Coordinate(Coordinate.SRID_CARTESIAN, 50 * i, 50 * j)))
+    for (i <- 0 until n; j <- 0 until n) {
+      if (i + 1 < n) {
+        builder.addLink(nodes(i)(j), nodes(i + 1)(j))
+        builder.addLink(nodes(i + 1)(j), nodes(i)(j))
+      }
+      if (j + 1 < n) {
+        builder.addLink(nodes(i)(j), nodes(i)(j + 1))
+        builder.addLink(nodes(i)(j + 1), nodes(i)(j))
+      }
+    }
+    builder.getNetwork.getLinks.toArray[Link]
+  }
+
+  def check(projector_type: ProjectorType.Value): Unit = {
+    val links = grid(10)
+    val reference = new SimpleProjection(links.toSeq)
+    val projector = ProjectorFactory.fromLinks(links.toSeq, projector_type)
+    val random = new scala.util.Random(0)
+    for (i <- 0 until 100) {
+      val c = new Coordinate(Coordinate.SRID_CARTESIAN, random.nextDouble * 500 - 25, random.nextDouble * 500 - 25)
+      val expected = reference.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, math.round(sp.offset))).toSet
+      val res = projector.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, math.round(sp.offset))).toSet
+      assertEquals(expected, res)
+      // The closest link.
+      val best = projector.getClosestLinks(c, 40.0, 1)
+      val best_expected = reference.getClosestLinks(c, 40.0, 1)
+      assertEquals(best_expected.length, best.length)
+    }
+  }
+
+  @Test def rtree: Unit = check(ProjectorType.RTree)
+
+  /**
+   * Small grids of links (WGS84) at several latitudes: the single frame of
+   * the spatial indexes is centered on one of them, and its scale is off by
+   * a few percents on the others.
+   */
+  def wgs84Grids(): Array[Link] = {
+    val builder = new SimpleNetworkBuilder
+    for (lat <- Seq(36.0, 37.0, 38.0, 39.0)) {
+      val nodes = Array.tabulate(5, 5)((i, j) =>
+        builder.addNode(new Coordinate(Coordinate.SRID_WGS84, lat + 0.0005 * i, -122.0 + 0.0005 * j)))
+      for (i <- 0 until 5; j <- 0 until 5) {
+        if (i + 1 < 5) {
+          builder.addLink(nodes(i)(j), nodes(i + 1)(j))
+        }
+        if (j + 1 < 5) {
+          builder.addLink(nodes(i)(j), nodes(i)(j + 1))
+        }
+      }
+    }
+    builder.getNetwork.getLinks.toArray[Link]
+  }
+
+  def checkWgs84(projector_type: ProjectorType.Value): Unit = {
+    val links = wgs84Grids()
+    val reference = new SimpleProjection(links.toSeq)
+    val projector = ProjectorFactory.fromLinks(links.toSeq, projector_type)
+    val random = new scala.util.Random(5)
+    for (lat <- Seq(36.0, 37.0, 38.0, 39.0); i <- 0 until 50) {
+      val c = new Coordinate(Coordinate.SRID_WGS84,
+        lat - 0.0003 + random.nextDouble * 0.0026, -122.0003 + random.nextDouble * 0.0026)
+      val expected = reference.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, math.round(sp.offset))).toSet
+      val res = projector.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, math.round(sp.offset))).toSet
+      assertEquals(expected, res)
+    }
+  }
+
+  @Test def rtreeWgs84: Unit = checkWgs84(ProjectorType.RTree)
+
+  @Test def gridWgs84: Unit = checkWgs84(ProjectorType.Grid)
+
+  @Test def grid: Unit = check(ProjectorType.Grid)
+
+  /**
+   * The batch projection returns the same points as the projection of each
+   * point.
+   */
+  @Test def batch: Unit = {
+    val links = grid(10)
+    val hook = new ProjectionHook(links.toSeq, 10, 40.0, 0.0)
+    val random = new scala.util.Random(1)
+    val points = Array.fill(200)(PIFUtils.createPC(random.nextDouble * 450, random.nextDouble * 450))
+    val res = hook.projectPoints(points, null, null)
+    assertEquals(points.length, res.length)
+    for (i <- 0 until points.length) {
+      val expected = hook.projectPoint(points(i)).spots.toSeq.map(sp => (sp.link, sp.offset)).toSet
+      assertEquals(expected, res(i).spots.toSeq.map(sp => (sp.link, sp.offset)).toSet)
+    }
+    // The buffer is reused.
+    val res2 = hook.projectPoints(points.take(50), null, res)
+    assert(res2 eq res)
+  }
+
+  /**
+   * The exact cache returns the same projections as the projector, and is
+   * used by the close points.
+   */
+  @Test def cache: Unit = {
+    val links = grid(10)
+    val projector = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree)
+    val cache = new ProjectionCache(projector, 20.0, 1000)
+    val random = new scala.util.Random(2)
+    for (i <- 0 until 500) {
+      val c = new Coordinate(Coordinate.SRID_CARTESIAN, random.nextDouble * 100, random.nextDouble * 100)
+      val expected = projector.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet
+      val res = cache.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet
+      assertEquals(expected, res)
+    }
+    // At most 6 x 6 cells.
+    assert(cache.numMisses <= 36, cache.numMisses)
+    assert(cache.numHits >= 464, cache.numHits)
+  }
+
+  /**
+   * The radii between two multiples of the cell size share the same entries
+   * of the exact cache.
+   */
+  @Test def cacheRadii: Unit = {
+    val links = grid(10)
+    val projector = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree)
+    val cache = new ProjectionCache(projector, 20.0, 1000)
+    val c = new Coordinate(Coordinate.SRID_CARTESIAN, 60, 110)
+    for (radius <- Seq(21.0, 25.0, 32.5, 40.0)) {
+      val expected = projector.getClosestLinks(c, radius, 1000).map(sp => (sp.link, sp.offset)).toSet
+      val res = cache.getClosestLinks(c, radius, 1000).map(sp => (sp.link, sp.offset)).toSet
+      assertEquals(expected, res)
+    }
+    assertEquals(1L, cache.numMisses)
+    assertEquals(3L, cache.numHits)
+  }
+
+  /**
+   * Same as above, on a network with several latitudes.
+   */
+  @Test def cacheWgs84: Unit = {
+    val links = wgs84Grids()
+    val projector = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree)
+    val cache = new ProjectionCache(projector, 20.0, 1000)
+    val random = new scala.util.Random(6)
+    for (lat <- Seq(36.0, 37.0, 38.0, 39.0); i <- 0 until 50) {
+      val c = new Coordinate(Coordinate.SRID_WGS84,
+        lat - 0.0003 + random.nextDouble * 0.0026, -122.0003 + random.nextDouble * 0.0026)
+      val expected = projector.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet
+      val res = cache.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet
+      assertEquals(expected, res)
+    }
+  }
+
+  /**
+   * The precomputed samples give the same grid projections as sampling the
+   * links at each query.
+   */
+  @Test def gridProjection: Unit = {
+    val links = grid(5)
+    val projector = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree)
+    val random = new scala.util.Random(3)
+    for (i <- 0 until 50) {
+      val c = new Coordinate(Coordinate.SRID_CARTESIAN, random.nextDouble * 200, random.nextDouble * 200)
+      val res = projector.getGridProjection(c, 30.0, 1000, 2.0)
+      val expected = projector.getClosestLinks(c, 30.0, 1000).flatMap(sp => {
+        val link = sp.link
+        (0.0 to link.length.toDouble by 2.0).filter(offset => {
+          link.geoMultiLine.getCoordinate(offset).distanceDefaultMethodInMeters(c) < 30.0 - 1e-3
+        }).map(offset => (link, offset))
+      }).toSet
+      val res_set = res.map(sp => (sp.link, sp.offset)).toSet
+      assert(expected.subsetOf(res_set), (expected -- res_set))
+    }
+  }
+
+  /**
+   * The segments read from an index file give the same projections.
+   */
+  @Test def projectorIndex: Unit = {
+    val links = grid(5)
+    val f = java.io.File.createTempFile("projector", ".bin")
+    f.delete()
+    try {
+      val p1 = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree, 100.0, f.getAbsolutePath)
+      assert(f.exists())
+      val p2 = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.RTree, 100.0, f.getAbsolutePath)
+      val c = new Coordinate(Coordinate.SRID_CARTESIAN, 60, 110)
+      assertEquals(p1.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet,
+        p2.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet)
+      // The R-tree and the grid read their arrays back.
+      val rtree_file = new java.io.File(f.getAbsolutePath + ".rtree")
+      assert(rtree_file.exists())
+      val p4 = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.RTree, 100.0, f.getAbsolutePath)
+      val p5 = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.Grid, 100.0, f.getAbsolutePath)
+      val p6 = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.Grid, 100.0, f.getAbsolutePath)
+      for (p <- Seq(p4, p5, p6)) {
+        assertEquals(p1.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet,
+          p.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet)
+      }
+      // A truncated file is rebuilt.
+      val num_bytes = f.length
+      val raf = new java.io.RandomAccessFile(f, "rw")
+      raf.setLength(num_bytes / 2)
+      raf.close()
+      val p3 = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.RTree, 100.0, f.getAbsolutePath)
+      assertEquals(num_bytes, f.length)
+      assertEquals(p1.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet,
+        p3.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, sp.offset)).toSet)
+    } finally {
+      f.delete()
+      new java.io.File(f.getAbsolutePath + ".rtree").delete()
+      new java.io.File(f.getAbsolutePath + ".grid").delete()
+    }
+  }
+
+  /**
+   * An index built with another distance method for the geometry is
+   * rejected (the link lengths may not depend on it).
+   */
+  @Test def projectorIndexDistanceMethod: Unit = {
+    val links = grid(3)
+    val f = java.io.File.createTempFile("projector", ".bin")
+    f.delete()
+    try {
+      ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree, 100.0, f.getAbsolutePath)
+      ProjectorIndex.open(links.toSeq, Projector.defaultSearchRadius, 0.0, f.getAbsolutePath)
+      DistancePolicy.set(DistancePolicy.Site.GEOMETRY, DistanceMethod.HAVERSINE)
+      try {
+        ProjectorIndex.open(links.toSeq, Projector.defaultSearchRadius, 0.0, f.getAbsolutePath)
+        fail("The index should be rejected")
+      } catch {
+        case e: NetconfigException =>
+      }
+    } finally {
+      DistancePolicy.reset()
+      f.delete()
+    }
+  }
+
+  /**
+   * The simplification drops the waypoints within the tolerance, and the
+   * simplified index gives the same projections.
+   */
+  @Test def simplification: Unit = {
+    val coords = Array((0.0, 0.0), (10.0, 0.5), (20.0, -0.5), (30.0, 0.0), (40.0, 20.0)).map(xy =>
+      new Coordinate(Coordinate.SRID_CARTESIAN, xy._1, xy._2))
+    assertEquals(Seq(0, 3, 4), SegmentStore.douglasPeucker(coords, 1.0).toSeq)
+    assertEquals(Seq(0, 1, 2, 3, 4), SegmentStore.douglasPeucker(coords, 0.1).toSeq)
+    val links = grid(5)
+    val reference = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree)
+    val projector = ProjectorFactory.fromLinks(links.toSeq, ProjectorType.KDTree, simplification = 5.0)
+    val c = new Coordinate(Coordinate.SRID_CARTESIAN, 60, 110)
+    assertEquals(reference.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, math.round(sp.offset))).toSet,
+      projector.getClosestLinks(c, 40.0, 1000).map(sp => (sp.link, math.round(sp.offset))).toSet)
+  }
+
+  /**
+   * The projected points carry the distances to their spots.
+   */
+  @Test def spotDistances: Unit = {
+    val links = grid(3)
+    val hook = new ProjectionHook(links.toSeq, 10, 30.0, 0.0)
+    val c = new Coordinate(Coordinate.SRID_CARTESIAN, 25, 7)
+    val point = hook.projectPoint(ProbeCoordinate.from[Link]("id", new Time, c))
+    assert(point.spots.size > 0)
+    assertEquals(point.spots.size, point.spotDistances.size)
+    for ((sp, i) <- point.spots.zipWithIndex) {
+      assertEquals(c.distanceCartesianInMeters(sp.toCoordinate), point.spotDistances.get(i), 1e-6)
+    }
+  }
+
+  /**
+   * The heading removes the opposite direction of a two-way street.
+   */
+  @Test def heading: Unit = {
+    val links = grid(3)
+    val hook = new ProjectionHook(links.toSeq, 10, 10.0, 0.0, heading_tolerance = 45.0)
+    val c = new Coordinate(Coordinate.SRID_CARTESIAN, 25, 2)
+    val no_heading = hook.projectPoint(ProbeCoordinate.from[Link]("id", new Time, c))
+    assertEquals(2, no_heading.spots.size)
+    // Going north (increasing latitude).
+    val north = ProbeCoordinate.from[Link]("id", new Time, c, null, null, java.lang.Short.valueOf(10.toShort), null, null)
+    val spots = hook.projectPoint(north).spots
+    assertEquals(1, spots.size)
+    val geom = spots.head.link.geoMultiLine
+    assert(geom.getFirstCoordinate.lat < geom.getLastCoordinate.lat)
+  }
+
+  /**
+   * The projections on the grid also go through the heading filter and the
+   * cache.
+   */
+  @Test def headingOnGrid: Unit = {
+    val links = grid(3)
+    val hook = new ProjectionHook(links.toSeq, 10, 10.0, 2.0, heading_tolerance = 45.0, cache_size = 100)
+    val c = new Coordinate(Coordinate.SRID_CARTESIAN, 25, 2)
+    val no_heading = hook.projectPoint(ProbeCoordinate.from[Link]("id", new Time, c))
+    assertEquals(2, no_heading.spots.map(_.link).toSet.size)
+    val north = ProbeCoordinate.from[Link]("id", new Time, c, null, null, java.lang.Short.valueOf(10.toShort), null, null)
+    val spots = hook.projectPoint(north).spots
+    assert(!spots.isEmpty)
+    assertEquals(1, spots.map(_.link).toSet.size)
+    val geom = spots.head.link.geoMultiLine
+    assert(geom.getFirstCoordinate.lat < geom.getLastCoordinate.lat)
+    assert(hook.cache.numHits + hook.cache.numMisses > 0)
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package pif.run
+
+import core_extensions.MMLogging
+import netconfig.Link
+import netconfig.io.json.NetworkUtils
+import netconfig_extensions.projection.PlanarFrame
+import netconfig_extensions.projection.ProjectorFactory
+import netconfig_extensions.projection.ProjectorType
+import scopt.OptionParser
+
+/**
+ * Compares the spatial indexes of the projector on a network: build time,
+ * query time, and agreement of the closest link with the KD-tree.
+ *
+ * The queries are random points around the links of the network, at a
+ * gaussian distance of the given standard deviation.
+ */
+object BenchmarkProjectors extends MMLogging {
+
+  def main(args: Array[String]) = {
+    var network_id: Int = -1
+    var net_type: String = ""
+    var num_queries: Int = 100000
+    var radius: Double = 100.0
+    var max_returns: Int = 10
+    var noise: Double = 20.0
+    val parser = new OptionParser("test") {
+      intOpt("nid", "the net id", network_id = _)
+      opt("net-type", "The network type", net_type = _)
+      intOpt("num-queries", "the number of projected points", num_queries = _)
+      doubleOpt("radius", "the search radius (meters)", radius = _)
+      intOpt("max-returns", "the maximum number of links returned", max_returns = _)
+      doubleOpt("noise", "the standard deviation of the distance of the points to the links (meters)", noise = _)
+    }
+    parser.parse(args)
+
+    logInfo("Loading links...")
+    val links: IndexedSeq[Link] = NetworkUtils.getLinks(network_id, net_type).values.toIndexedSeq
+    val random = new scala.util.Random(0)
+    val queries = Array.fill(num_queries) {
+      val link = links(random.nextInt(links.size))
+      val c = link.geoMultiLine.getCoordinate(random.nextDouble * link.length)
+      val frame = PlanarFrame.centeredAt(c)
+      frame.coordinate(random.nextGaussian * noise, random.nextGaussian * noise, c.srid.intValue)
+    }
+
+    var reference: Array[Link] = null
+    for (projector_type <- ProjectorType.values) {
+      val start_build = System.nanoTime
+      val projector = ProjectorFactory.fromLinks(links, projector_type, radius)
+      val build_time = (System.nanoTime - start_build) * 1e-9
+      // Warm up.
+      for (c <- queries.take(num_queries / 10)) {
+        projector.getClosestLinks(c, radius, max_returns)
+      }
+      val closest = new Array[Link](num_queries)
+      var num_spots = 0L
+      val start_queries = System.nanoTime
+      for (i <- 0 until num_queries) {
+        val spots = projector.getClosestLinks(queries(i), radius, max_returns)
+        num_spots += spots.length
+        if (!spots.isEmpty) {
+          closest(i) = spots.head.link
+        }
+      }
+      val query_time = (System.nanoTime - start_queries) * 1e-9
+      if (reference == null) {
+        reference = closest
+      }
+      val num_differences = (0 until num_queries).count(i => closest(i) != reference(i))
+      logInfo("%s: build %.2f s, %.2f us/query, %.2f spots/query, %d different closest links" format (
+        projector_type, build_time, 1e6 * query_time / math.max(1, num_queries),
+        num_spots.toDouble / math.max(1, num_queries), num_differences))
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2012. The Regents of the University of California (Regents).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package pif.run
+
+import core_extensions.MMLogging
+import netconfig.io.files.ReachabilityTableFile
+import netconfig.io.json.NetworkUtils
+import netconfig.storage.LinkIDReprOrdering
+import path_inference.shortest_path.ReachabilityTable
+import scopt.OptionParser
+
+/**
+ * Precomputes the table of the shortest paths between the close links of a
+ * network (see ReachabilityTable), to be used by RunPif.
+ *
+ * The links are sorted by id, which is also the order used by RunPif to open
+ * the table.
+ */
+object BuildReachabilityTable extends MMLogging {
+
+  def main(args: Array[String]) = {
+    var network_id: Int = -1
+    var net_type: String = ""
+    var k: Int = 10
+    var max_distance: Double = 500.0
+    val parser = new OptionParser("test") {
+      intOpt("nid", "the net id", network_id = _)
+      opt("net-type", "The network type", net_type = _)
+      intOpt("k", "the number of paths stored for each pair of links", k = _)
+      doubleOpt("max-distance", "the maximum distance between two links (meters)", max_distance = _)
+    }
+    parser.parse(args)
+
+    logInfo("Loading links...")
+    val net = NetworkUtils.getLinks(network_id, net_type)
+    val links = net.toSeq.sortBy(_._1)(LinkIDReprOrdering).map(_._2).toIndexedSeq
+    val fname = ReachabilityTableFile.fileName(network_id, net_type)
+    logInfo("Building reachability table %s..." format fname)
+    ReachabilityTable.build(links, k, max_distance, fname)
+    logInfo("Done")
+  }
+}
@@ -19,6 +19,7 @@ package pif.run
 import java.io.File
 import org.joda.time.LocalDate
 import core_extensions.MMLogging
+import core.DistancePolicy
 import core.TimeUtils.TimeOrdering
 import netconfig.Datum.ProbeCoordinate
 import netconfig.io.Dates.parseDate
@@ -43,7 +44,16 @@ import scopt.OptionParser
 import netconfig.io.Dates
 import scala.actors.Futures._
 import netconfig.io.json.NetworkUtils
+import path_inference.shortest_path.DefaultCachedPathGenerator
 import path_inference.shortest_path.PathGenerator2
+import path_inference.shortest_path.PathCacheWarmer
+import path_inference.shortest_path.ObservedRoutes
+import path_inference.shortest_path.HistoricalPathGenerator
+import path_inference.shortest_path.ReachabilityPathGenerator
+import path_inference.shortest_path.ReachabilityTable
+import netconfig.io.files.ReachabilityTableFile
+import netconfig.io.files.ProjectorIndexFile
+import netconfig.storage.LinkIDReprOrdering
 
 /**
  * Runs the path inference on some serialized data, using a generic network representation.
@@ -69,6 +79,12 @@ object RunPif extends MMLogging {
     var num_threads: Int = 1
     var extended_info: Boolean = false
     var sort_time: Boolean = false
+    var warmup_range: Seq[LocalDate] = Seq.empty
+    var historical_range: Seq[LocalDate] = Seq.empty
+    var use_reachability_table: Boolean = false
+    var projection_batch: Int = 0
+    var use_projector_index: Boolean = false
+    var distance_policy: String = ""
     val parser = new OptionParser("test") {
       intOpt("nid", "the net id", network_id = _)
       intOpt("num-threads", "the number of threads (the program will use one thread per day)", num_threads = _)
@@ -79,21 +95,78 @@ object RunPif extends MMLogging {
       opt("driver_id", "Runs the filter on the selected driver id", driver_id = _)
       booleanOpt("extended-info", "Adds additional (redundant) information in the output file. Useful for python.", extended_info = _)
       booleanOpt("resort-data", "sort the data by timestamp before sending it to the PIF", sort_time = _)
+      opt("warmup-range", "the dates of previous outputs used to warm up the paths cache", (s: String) => for (r <- parseRange(s)) { warmup_range = r })
+      opt("historical-range", "the dates of previous outputs from which the frequent routes are used as candidate paths", (s: String) => for (r <- parseRange(s)) { historical_range = r })
+      booleanOpt("reachability-table", "use the precomputed paths between close links (see BuildReachabilityTable)", use_reachability_table = _)
+      booleanOpt("projector-index", "reads the segments of the projector from a file, written at the first run", use_projector_index = _)
+      intOpt("projection-batch", "projects the points in parallel, in batches of this size, before sending them to the PIF (0: disabled)", projection_batch = _)
+      opt("distance-policy", "the distance methods of the call sites, for example geometry=local_planar,observation=local_planar (default: vincenty everywhere)", distance_policy = _)
     }
     parser.parse(args)
 
+    // Must be set before loading the links.
+    DistancePolicy.parse(distance_policy)
+
     val parameters = pifParameters()
+    if (projection_batch > 0) {
+      parameters.setPreProjectedPoints(true)
+    }
 
     logInfo("Loading links...")
     var net = NetworkUtils.getLinks(network_id, net_type)
-    val links = net.values.toIndexedSeq
+    // The reachability table and the projector index require the same order
+    // of the links at each run.
+    val links = net.toSeq.sortBy(_._1)(LinkIDReprOrdering).map(_._2).toIndexedSeq
 
     val serializer: Serializer[Link] = NetworkUtils.getSerializer(net)
 
     logInfo("Building projector...")
-    val projection_hook: ProjectionHookInterface = ProjectionHook.create(links, parameters)
+    val projector_index = if (use_projector_index) {
+      ProjectorIndexFile.fileName(network_id, net_type)
+    } else {
+      null
+    }
+    val projection_hook: ProjectionHookInterface = ProjectionHook.create(links, parameters, projector_index)
+
+    // The routes found in the previous outputs of the filter.
+    def observedRoutes(dates: Seq[LocalDate]) = {
+      val fnames = dates.map(d => PathInferenceViterbi.fileName(feed = feed,
+        nid = network_id,
+        date = d,
+        net_type = net_type)).filter(fname => (new File(fname)).exists())
+      logInfo("Reading the routes of %d files" format fnames.size)
+      fnames.iterator.flatMap(fname =>
+        ObservedRoutes.fromPathInferences(serializer.readPathInferences(fname).iterator))
+    }
 
-    val path_gen = PathGenerator2.getDefaultPathGenerator(parameters)
+    val cached_path_gen = if (historical_range.isEmpty) {
+      PathGenerator2.getDefaultPathGenerator(parameters)
+    } else {
+      logInfo("Building historical paths...")
+      val historical_gen = HistoricalPathGenerator.build(observedRoutes(historical_range),
+        parameters.historicalPathsMinSupport,
+        parameters.maxPaths,
+        PathGenerator2.getDefaultSearch(parameters))
+      PathGenerator2.getCachedPathGenerator(parameters, historical_gen)
+    }
+
+    val path_gen = if (use_reachability_table) {
+      val table = ReachabilityTable.open(links, ReachabilityTableFile.fileName(network_id, net_type))
+      new ReachabilityPathGenerator(table, cached_path_gen)
+    } else {
+      cached_path_gen
+    }
+
+    // The cache is warmed up before the first point is processed.
+    if (!warmup_range.isEmpty) {
+      cached_path_gen match {
+        case cached: DefaultCachedPathGenerator =>
+          val warmer = new PathCacheWarmer(cached, parameters.maxPaths, parameters.pathsCacheSize)
+          warmer.warmUp(observedRoutes(warmup_range))
+        case _ =>
+          logWarning("The path generator has no cache to warm up, ignoring the warm-up range")
+      }
+    }
 
     val date_range: Seq[LocalDate] = {
       if (date != null) {
@@ -134,7 +207,8 @@ object RunPif extends MMLogging {
             findex,
             drivers_whitelist,
             extended_info,
-            sort_time)
+            sort_time,
+            projection_batch)
         }
       }
     }
@@ -167,7 +241,8 @@ object RunPif extends MMLogging {
     file_index: RawProbe.FileIndex,
     drivers_whitelist: Set[String],
     extended_info: Boolean,
-    sort_time: Boolean): Unit = {
+    sort_time: Boolean,
+    projection_batch: Int = 0): Unit = {
 
     val fname_in = RawProbe.fileName(file_index)
     val fname_pcs = ProbeCoordinateViterbi.fileName(feed = file_index.feed,
@@ -197,16 +272,26 @@ object RunPif extends MMLogging {
     }
     logInfo("Opened data source: %s" format fname_in)
     val pif = PathInferenceFilter.createManager(parameters, projector, path_gen)
-    for (raw <- data) {
-      val pc = raw
-      if (drivers_whitelist.isEmpty || pc.id == null || drivers_whitelist.contains(pc.id)) {
-        pif.addPoint(pc)
-        for (out_pi <- pif.getPathInferences) {
-          writer_pi.put(out_pi)
-        }
-        for (out_pc <- pif.getProbeCoordinates) {
-          writer_pc.put(out_pc)
-        }
+    val selected = data.iterator.filter(pc =>
+      drivers_whitelist.isEmpty || pc.id == null || drivers_whitelist.contains(pc.id))
+    val points = if (projection_batch > 0) {
+      // The buffer is reused: each batch is consumed before the next one is
+      // projected.
+      val buffer = new Array[ProbeCoordinate[Link]](projection_batch)
+      selected.grouped(projection_batch).flatMap(batch => {
+        projector.projectPoints(batch.toArray, null, buffer)
+        buffer.iterator.take(batch.size)
+      })
+    } else {
+      selected
+    }
+    for (pc <- points) {
+      pif.addPoint(pc)
+      for (out_pi <- pif.getPathInferences) {
+        writer_pi.put(out_pi)
+      }
+      for (out_pc <- pif.getProbeCoordinates) {
+        writer_pc.put(out_pc)
       }
     }
     pif.finalizeManager